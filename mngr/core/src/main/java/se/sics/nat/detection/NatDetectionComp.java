@@ -19,7 +19,9 @@
 package se.sics.nat.detection;
 
 import com.google.common.base.Optional;
+import java.io.File;
 import java.net.InetAddress;
+import java.util.UUID;
 import org.javatuples.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,7 +35,11 @@ import se.sics.kompics.Kill;
 import se.sics.kompics.Negative;
 import se.sics.kompics.Positive;
 import se.sics.kompics.Start;
+import se.sics.kompics.util.Identifier;
 import se.sics.kompics.network.Network;
+import se.sics.kompics.timer.CancelPeriodicTimeout;
+import se.sics.kompics.timer.SchedulePeriodicTimeout;
+import se.sics.kompics.timer.Timeout;
 import se.sics.kompics.timer.Timer;
 import se.sics.ktoolbox.netmngr.nxnet.NxNetBind;
 import se.sics.ktoolbox.netmngr.nxnet.NxNetPort;
@@ -43,16 +49,44 @@ import se.sics.ktoolbox.util.identifiable.BasicIdentifiers;
 import se.sics.ktoolbox.util.identifiable.IdentifierFactory;
 import se.sics.ktoolbox.util.identifiable.IdentifierRegistryV2;
 import se.sics.ktoolbox.util.network.basic.BasicAddress;
+import se.sics.ktoolbox.util.network.nat.Nat;
 import se.sics.ktoolbox.util.network.nat.NatAwareAddress;
 import se.sics.ktoolbox.util.network.nat.NatAwareAddressImpl;
 import se.sics.ktoolbox.util.network.nat.NatType;
+import se.sics.nat.detection.event.NatDetect;
 import se.sics.nat.detection.event.NatDetected;
+import se.sics.nat.detection.event.NatDetectionRelease;
+import se.sics.nat.detection.util.NatDetectionCache;
 import se.sics.nat.stun.StunClientPort;
+import se.sics.nat.stun.StunEchoCheck;
+import se.sics.nat.stun.StunEchoChecked;
+import se.sics.nat.stun.StunNatDetect;
 import se.sics.nat.stun.StunNatDetected;
 import se.sics.nat.stun.client.StunClientComp;
 import se.sics.nat.stun.client.StunClientKCWrapper;
 
 /**
+ * With nat.detection.cache.file set, a cached result for this interface is
+ * first revalidated with a single echo (StunEchoCheck). If the stun server
+ * still sees the cached public ip - and the local port, for nats that keep it -
+ * the cached result is reported, otherwise a full detection runs on the same
+ * stun client.
+ * <p>
+ * With nat.detection.monitor.period set, the stun client is kept after the
+ * first result and a single echo checks the mapping every period, the same
+ * way the cache is revalidated. A different public ip (or local port, for
+ * nats that keep it), or nat.detection.monitor.misses unanswered checks in a
+ * row, trigger a full re-detection. A re-detection result that differs from
+ * the last reported one - or that follows a changed mapping - is reported
+ * again as NatDetected.
+ * <p>
+ * The component is long lived: NatDetect asks for a new detection. The stun
+ * client and its ports are kept while the result is udp blocked (retries) or
+ * while monitoring, and only released after a usable result otherwise - a
+ * later NatDetect binds them again. NatDetectionRelease stops everything and
+ * is answered once the stun client ports are unbound, so the component can be
+ * killed without leaking them.
+ *
  * @author Alex Ormenisan <aaor@kth.se>
  */
 public class NatDetectionComp extends ComponentDefinition {
@@ -66,6 +100,7 @@ public class NatDetectionComp extends ComponentDefinition {
   Positive<NxNetPort> nxNetPort = requires(NxNetPort.class);
   //***********************INTERNAL_DO_NOT_CONNECT****************************
   Positive<StunClientPort> stunPort = requires(StunClientPort.class);
+  Positive<Timer> timerPort = requires(Timer.class);
   //*******************************CONFIG*************************************
   private SystemKCWrapper systemConfig;
   private StunClientKCWrapper stunClientConfig;
@@ -77,6 +112,23 @@ public class NatDetectionComp extends ComponentDefinition {
   private Pair<NatAwareAddress, NatAwareAddress> stunAdr = Pair.with(null, null);
   private NatType natType;
   private Optional<InetAddress> publicIp;
+  private final Optional<NatDetectionCache> cache;
+  private final String cacheKey;
+  private Optional<Pair<NatType, InetAddress>> cached = Optional.absent();
+  private boolean reported = false;
+  private UUID monitorTid;
+  private Identifier pendingCheck;
+  private boolean redetecting = false;
+  //the monitor saw a new mapping - the re-detection result is reported even if it looks the same
+  private boolean mappingChanged = false;
+  //full detection running, not yet reported
+  private boolean detecting = false;
+  private int monitorMisses = 0;
+  //stun client port binds/unbinds in flight
+  private boolean binding = false;
+  private boolean unbinding = false;
+  //answered once the stun client ports are unbound
+  private NatDetectionRelease releaseReq;
   //******************************COMPONENTS**********************************
   private Pair<Component, Channel[]> stunClient;
   //******************************AUX_STATE***********************************
@@ -101,9 +153,21 @@ public class NatDetectionComp extends ComponentDefinition {
     natDetectionConfig = new NatDetectionKCWrapper(config(), nodeIdFactory);
     extPorts = init.extPorts;
     privateIp = init.privateIp;
+    if (natDetectionConfig.cacheFile.isPresent()) {
+      cache = Optional.of(new NatDetectionCache(new File(natDetectionConfig.cacheFile.get()),
+        natDetectionConfig.cacheTtl));
+    } else {
+      cache = Optional.absent();
+    }
+    cacheKey = NatDetectionCache.key(privateIp);
+    connect(timerPort.getPair(), extPorts.timerPort, Channel.TWO_WAY);
     subscribe(handleStart, control);
+    subscribe(handleDetect, natDetectionPort);
+    subscribe(handleRelease, natDetectionPort);
+    subscribe(handleMonitor, timerPort);
     subscribe(handleBindResp, nxNetPort);
     subscribe(handleStunResp, stunPort);
+    subscribe(handleEchoChecked, stunPort);
     subscribe(handleUnbindResp, nxNetPort);
   }
 
@@ -118,12 +182,67 @@ public class NatDetectionComp extends ComponentDefinition {
     @Override
     public void handle(Start event) {
       LOG.debug("{}starting...", logPrefix);
+      if (cache.isPresent()) {
+        cached = cache.get().get(cacheKey);
+        if (cached.isPresent()) {
+          LOG.info("{}cached nat:{} public ip:{} - revalidating",
+            new Object[]{logPrefix, cached.get().getValue0(), cached.get().getValue1()});
+        }
+      }
+      detecting = true;
       setupStunClient1();
     }
   };
 
+  Handler handleDetect = new Handler<NatDetect>() {
+    @Override
+    public void handle(NatDetect req) {
+      LOG.trace("{}received:{}", logPrefix, req);
+      if (releaseReq != null) {
+        LOG.debug("{}released - dropping:{}", logPrefix, req);
+        return;
+      }
+      if (detecting || redetecting) {
+        LOG.debug("{}detection already running", logPrefix);
+        return;
+      }
+      if (stunClient == null) {
+        if (stunAdr.getValue0() != null || stunAdr.getValue1() != null) {
+          LOG.warn("{}stun client ports still releasing - dropping:{}", logPrefix, req);
+          return;
+        }
+        //released after a previous result - the new client detects on start
+        cached = Optional.absent();
+        detecting = true;
+        setupStunClient1();
+        return;
+      }
+      detecting = true;
+      trigger(new StunNatDetect(eventIds.randomId()), stunPort);
+    }
+  };
+
+  Handler handleRelease = new Handler<NatDetectionRelease>() {
+    @Override
+    public void handle(NatDetectionRelease req) {
+      LOG.trace("{}received:{}", logPrefix, req);
+      releaseReq = req;
+      detecting = false;
+      redetecting = false;
+      mappingChanged = false;
+      stopMonitor();
+      if (stunClient != null) {
+        cleanupStunClient1();
+      } else if (!binding && !unbinding) {
+        trigger(releaseReq.answer(), natDetectionPort);
+      }
+      //otherwise answered when the binds/unbinds in flight are done
+    }
+  };
+
   private void setupStunClient1() {
     LOG.debug("{}setting up public ip detection", logPrefix);
+    binding = true;
     int stunClientPort1 = stunClientConfig.stunClientPorts.getValue0();
     int stunClientPort2 = stunClientConfig.stunClientPorts.getValue1();
     if (stunClientConfig.stunClientIp.isPresent()) {
@@ -146,13 +265,39 @@ public class NatDetectionComp extends ComponentDefinition {
     if (stunAdr.getValue0() == null || stunAdr.getValue1() == null) {
       return;
     }
+    binding = false;
+    if (releaseReq != null) {
+      unbindStunPorts();
+      return;
+    }
     setStunClient();
     trigger(Start.event, stunClient.getValue0().control());
+    if (cached.isPresent()) {
+      StunEchoCheck check = new StunEchoCheck(eventIds.randomId());
+      pendingCheck = check.eventId;
+      trigger(check, stunPort);
+    }
+  }
+
+  private void detectionDone() {
+    detecting = false;
+    if (natType.isBlocked()) {
+      //keep the stun client for the retry
+      trigger(new NatDetected(eventIds.randomId(), natType, publicIp), natDetectionPort);
+    } else if (natDetectionConfig.monitorPeriod.isPresent()) {
+      reported = true;
+      trigger(new NatDetected(eventIds.randomId(), natType, publicIp), natDetectionPort);
+      if (monitorTid == null) {
+        startMonitor();
+      }
+    } else {
+      cleanupStunClient1();
+    }
   }
 
   private void setStunClient() {
     Component stunClientComp = create(StunClientComp.class,
-      new StunClientComp.Init(stunAdr, natDetectionConfig.stunView));
+      new StunClientComp.Init(stunAdr, natDetectionConfig.stunViews, !cached.isPresent()));
     Channel[] stunClientChannels = new Channel[3];
     stunClientChannels[0] = connect(stunClientComp.getNegative(Timer.class), extPorts.timerPort, Channel.TWO_WAY);
     stunClientChannels[1] = connect(stunClientComp.getNegative(Network.class), extPorts.networkPort, Channel.TWO_WAY);
@@ -171,7 +316,13 @@ public class NatDetectionComp extends ComponentDefinition {
     trigger(Kill.event, stunClient.getValue0().control());
 
     stunClient = null;
+    //a killed client never answers its running check
+    pendingCheck = null;
+    unbindStunPorts();
+  }
 
+  private void unbindStunPorts() {
+    unbinding = true;
     stun1UnbindReq = new NxNetUnbind.Request(eventIds.randomId(), stunAdr.getValue0().getPort());
     trigger(stun1UnbindReq, nxNetPort);
     stun2UnbindReq = new NxNetUnbind.Request(eventIds.randomId(), stunAdr.getValue1().getPort());
@@ -182,6 +333,11 @@ public class NatDetectionComp extends ComponentDefinition {
     if (stunAdr.getValue0() != null || stunAdr.getValue1() != null) {
       return;
     }
+    unbinding = false;
+    if (releaseReq != null) {
+      trigger(releaseReq.answer(), natDetectionPort);
+      return;
+    }
     trigger(new NatDetected(eventIds.randomId(), natType, publicIp), natDetectionPort);
   }
 
@@ -213,12 +369,12 @@ public class NatDetectionComp extends ComponentDefinition {
     @Override
     public void handle(NxNetUnbind.Response resp) {
       LOG.trace("{}received:{}", logPrefix, resp);
-      if (resp.getId().equals(stun1UnbindReq.getId())) {
+      if (stun1UnbindReq != null && resp.getId().equals(stun1UnbindReq.getId())) {
         stunAdr = stunAdr.setAt0((NatAwareAddress) null);
         cleanupStunClient2();
         return;
       }
-      if (resp.getId().equals(stun2UnbindReq.getId())) {
+      if (stun2UnbindReq != null && resp.getId().equals(stun2UnbindReq.getId())) {
         stunAdr = stunAdr.setAt1((NatAwareAddress) null);
         cleanupStunClient2();
         return;
@@ -231,12 +387,141 @@ public class NatDetectionComp extends ComponentDefinition {
     public void handle(StunNatDetected event) {
       LOG.info("{}detected nat - public ip:{} nat type:{}",
         new Object[]{logPrefix, (event.publicIp.isPresent() ? event.publicIp.get() : "x"), event.natType});
-      publicIp = event.publicIp;
+      if (cache.isPresent() && event.publicIp.isPresent() && !event.natType.isBlocked()) {
+        cache.get().put(cacheKey, event.natType, event.publicIp.get());
+      }
+      if (redetecting) {
+        redetecting = false;
+        boolean remap = mappingChanged;
+        mappingChanged = false;
+        if (!changed(event) && !remap) {
+          LOG.info("{}re-detection - no change", logPrefix);
+          return;
+        }
+        natType = event.natType;
+        publicIp = event.publicIp;
+        trigger(new NatDetected(eventIds.randomId(), natType, publicIp), natDetectionPort);
+        return;
+      }
       natType = event.natType;
-      cleanupStunClient1();
+      publicIp = event.publicIp;
+      detectionDone();
     }
   };
 
+  private boolean changed(StunNatDetected event) {
+    return !natType.toString().equals(event.natType.toString()) || !publicIp.equals(event.publicIp);
+  }
+
+  Handler handleEchoChecked = new Handler<StunEchoChecked>() {
+    @Override
+    public void handle(StunEchoChecked event) {
+      if (!event.eventId.equals(pendingCheck)) {
+        return;
+      }
+      pendingCheck = null;
+      if (reported) {
+        monitorChecked(event);
+        return;
+      }
+      if (event.observed.isPresent() && cachedMappingHolds(event.observed.get())) {
+        LOG.info("{}cached nat confirmed", logPrefix);
+        natType = cached.get().getValue0();
+        publicIp = Optional.of(cached.get().getValue1());
+        detectionDone();
+      } else {
+        LOG.info("{}cached nat stale - detecting", logPrefix);
+        trigger(new StunNatDetect(eventIds.randomId()), stunPort);
+      }
+    }
+  };
+
+  private boolean cachedMappingHolds(NatAwareAddress observed) {
+    return mappingHolds(cached.get().getValue0(), cached.get().getValue1(), observed);
+  }
+
+  /**
+   * The cache and the monitor know the public ip only. Where the nat keeps
+   * the local port (open, port forwarding, port preservation) the observed
+   * port must also be the local port of the first stun client address - the
+   * one echo checks are sent from. Other allocations pick a new port for
+   * every mapping, so only the ip is compared.
+   */
+  private boolean mappingHolds(NatType type, InetAddress ip, NatAwareAddress observed) {
+    if (!observed.getIp().equals(ip)) {
+      return false;
+    }
+    boolean portKept = type.isOpen() || type.isNatPortForwarding()
+      || Nat.AllocationPolicy.PORT_PRESERVATION.equals(type.allocationPolicy);
+    return !portKept || observed.getPort() == stunAdr.getValue0().getPort();
+  }
+
+  //*******************************MONITOR************************************
+  private void startMonitor() {
+    long period = natDetectionConfig.monitorPeriod.get();
+    SchedulePeriodicTimeout spt = new SchedulePeriodicTimeout(period, period);
+    MonitorTimeout mt = new MonitorTimeout(spt);
+    spt.setTimeoutEvent(mt);
+    trigger(spt, timerPort);
+    monitorTid = mt.getTimeoutId();
+  }
+
+  private void stopMonitor() {
+    if (monitorTid == null) {
+      return;
+    }
+    trigger(new CancelPeriodicTimeout(monitorTid), timerPort);
+    monitorTid = null;
+  }
+
+  @Override
+  public void tearDown() {
+    stopMonitor();
+  }
+
+  Handler handleMonitor = new Handler<MonitorTimeout>() {
+    @Override
+    public void handle(MonitorTimeout timeout) {
+      if (stunClient == null || pendingCheck != null || redetecting) {
+        return;
+      }
+      StunEchoCheck check = new StunEchoCheck(eventIds.randomId());
+      pendingCheck = check.eventId;
+      trigger(check, stunPort);
+    }
+  };
+
+  private void monitorChecked(StunEchoChecked event) {
+    if (!event.observed.isPresent()) {
+      monitorMisses++;
+      if (monitorMisses < natDetectionConfig.monitorMisses) {
+        return;
+      }
+      LOG.warn("{}monitor - {} unanswered checks", logPrefix, monitorMisses);
+    } else if (publicIp.isPresent() && mappingHolds(natType, publicIp.get(), event.observed.get())) {
+      monitorMisses = 0;
+      return;
+    } else {
+      LOG.info("{}monitor - mapping changed to:{}", logPrefix, event.observed.get());
+      mappingChanged = true;
+    }
+    monitorMisses = 0;
+    redetecting = true;
+    trigger(new StunNatDetect(eventIds.randomId()), stunPort);
+  }
+
+  private static class MonitorTimeout extends Timeout {
+
+    MonitorTimeout(SchedulePeriodicTimeout request) {
+      super(request);
+    }
+
+    @Override
+    public String toString() {
+      return "NatMonitorTimeout";
+    }
+  }
+
   public static class Init extends se.sics.kompics.Init<NatDetectionComp> {
 
     public final ExtPort extPorts;
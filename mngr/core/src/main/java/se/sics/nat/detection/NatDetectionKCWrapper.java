@@ -18,6 +18,9 @@
  */
 package se.sics.nat.detection;
 
+import com.google.common.base.Optional;
+import java.util.ArrayList;
+import java.util.List;
 import se.sics.kompics.config.Config;
 import se.sics.ktoolbox.util.config.KConfigHelper;
 import se.sics.ktoolbox.util.identifiable.IdentifierFactory;
@@ -31,9 +34,32 @@ public class NatDetectionKCWrapper {
 
   public final Config configCore;
   public final StunView stunView;
+  //stunView first, followed by the alternatives
+  public final List<StunView> stunViews = new ArrayList<>();
+  //no file - no cache
+  public final Optional<String> cacheFile;
+  public final long cacheTtl;
+  //no period - detect once and release the stun client
+  public final Optional<Long> monitorPeriod;
+  //unanswered monitor echoes in a row that trigger a re-detection
+  public final int monitorMisses;
 
   public NatDetectionKCWrapper(Config configCore, IdentifierFactory nodeIdFactory) {
     this.configCore = configCore;
     stunView = KConfigHelper.read(configCore, NatDetectionKConfig.stunViewGen.apply(nodeIdFactory));
+    stunViews.add(stunView);
+    cacheFile = configCore.readValue(NatDetectionKConfig.cacheFile.name, NatDetectionKConfig.cacheFile.type);
+    cacheTtl = configCore.readValue(NatDetectionKConfig.cacheTtl.name, NatDetectionKConfig.cacheTtl.type)
+      .or(60 * 60 * 1000l);
+    monitorPeriod = configCore.readValue(NatDetectionKConfig.monitorPeriod.name, NatDetectionKConfig.monitorPeriod.type);
+    monitorMisses = configCore.readValue(NatDetectionKConfig.monitorMisses.name, NatDetectionKConfig.monitorMisses.type)
+      .or(3);
+    for (int i = 1;; i++) {
+      Optional<StunView> alt = NatDetectionKConfig.altStunView(i, nodeIdFactory).readValue(configCore);
+      if (!alt.isPresent()) {
+        break;
+      }
+      stunViews.add(alt.get());
+    }
   }
 }
@@ -19,6 +19,7 @@
 package se.sics.nat.detection;
 
 import com.google.common.base.Function;
+import se.sics.ktoolbox.util.config.KConfigOption;
 import se.sics.ktoolbox.util.identifiable.IdentifierFactory;
 import se.sics.nat.detection.util.StunViewOption;
 
@@ -27,6 +28,21 @@ import se.sics.nat.detection.util.StunViewOption;
  */
 public class NatDetectionKConfig {
 
+  public static final KConfigOption.Basic<String> cacheFile = new KConfigOption.Basic("nat.detection.cache.file",
+    String.class);
+  public static final KConfigOption.Basic<Long> cacheTtl = new KConfigOption.Basic("nat.detection.cache.ttl",
+    Long.class);
+  public static final KConfigOption.Basic<Long> monitorPeriod = new KConfigOption.Basic("nat.detection.monitor.period",
+    Long.class);
+  public static final KConfigOption.Basic<Integer> monitorMisses = new KConfigOption.Basic(
+    "nat.detection.monitor.misses", Integer.class);
   public static final Function<IdentifierFactory, StunViewOption> stunViewGen 
     = (IdentifierFactory nodeIdFactory) -> new StunViewOption("nat.detection.stunView", nodeIdFactory);
+  /**
+   * optional extra stun server pairs: nat.detection.stunView1, nat.detection.stunView2, ... read until the first
+   * missing index
+   */
+  public static StunViewOption altStunView(int index, IdentifierFactory nodeIdFactory) {
+    return new StunViewOption("nat.detection.stunView" + index, nodeIdFactory);
+  }
 }
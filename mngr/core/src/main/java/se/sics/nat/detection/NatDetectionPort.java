@@ -19,13 +19,19 @@
 package se.sics.nat.detection;
 
 import se.sics.kompics.PortType;
+import se.sics.nat.detection.event.NatDetect;
 import se.sics.nat.detection.event.NatDetected;
+import se.sics.nat.detection.event.NatDetectionRelease;
+import se.sics.nat.detection.event.NatDetectionReleased;
 
 /**
  * @author Alex Ormenisan <aaor@kth.se>
  */
 public class NatDetectionPort extends PortType {
     {
+        request(NatDetect.class);
         indication(NatDetected.class);
+        request(NatDetectionRelease.class);
+        indication(NatDetectionReleased.class);
     }
 }
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * NatTraverser is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.nat.detection.event;
+
+import se.sics.kompics.KompicsEvent;
+import se.sics.kompics.util.Identifiable;
+import se.sics.kompics.util.Identifier;
+
+/**
+ * Asks the nat detection component to stop and unbind its stun client ports.
+ * NatDetectionReleased comes once the ports are free - only then can the
+ * component be killed without leaking them.
+ *
+ * @author Alex Ormenisan <aaor@kth.se>
+ */
+public class NatDetectionRelease implements KompicsEvent, Identifiable<Identifier> {
+
+  public final Identifier eventId;
+
+  public NatDetectionRelease(Identifier eventId) {
+    this.eventId = eventId;
+  }
+
+  public NatDetectionReleased answer() {
+    return new NatDetectionReleased(eventId);
+  }
+
+  @Override
+  public Identifier getId() {
+    return eventId;
+  }
+
+  @Override
+  public String toString() {
+    return "NatDetectionRelease<" + eventId + ">";
+  }
+}
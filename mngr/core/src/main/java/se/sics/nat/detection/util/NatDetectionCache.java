@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * NatTraverser is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.nat.detection.util;
+
+import com.google.common.base.Optional;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.Properties;
+import org.javatuples.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.sics.ktoolbox.util.network.nat.Nat;
+import se.sics.ktoolbox.util.network.nat.NatType;
+
+/**
+ * Last nat detection result per local interface, kept in a properties file.
+ * The key is the private ip and the mac of the interface holding it, so a
+ * host that moved to another network misses the cache. Entries older than
+ * ttl are ignored.
+ * <p>
+ * Only results that can be rebuilt from the stored fields are cached: open,
+ * port forwarding and nats without port contiguity. Anything else is detected
+ * from scratch every time.
+ *
+ * @author Alex Ormenisan <aaor@kth.se>
+ */
+public class NatDetectionCache {
+
+  private static final Logger LOG = LoggerFactory.getLogger(NatDetectionCache.class);
+  private static final String OPEN = "OPEN";
+  private static final String PORT_FORWARDING = "PF";
+  private static final String NAT = "NAT";
+
+  private final File file;
+  private final long ttl;
+
+  public NatDetectionCache(File file, long ttl) {
+    this.file = file;
+    this.ttl = ttl;
+  }
+
+  public static String key(InetAddress privateIp) {
+    StringBuilder sb = new StringBuilder(privateIp.getHostAddress());
+    try {
+      NetworkInterface ni = NetworkInterface.getByInetAddress(privateIp);
+      byte[] mac = (ni == null ? null : ni.getHardwareAddress());
+      if (mac != null) {
+        sb.append("/");
+        for (byte b : mac) {
+          sb.append(String.format("%02x", b));
+        }
+      }
+    } catch (SocketException ex) {
+      LOG.debug("no interface info for:{}", privateIp);
+    }
+    return sb.toString();
+  }
+
+  public Optional<Pair<NatType, InetAddress>> get(String key) {
+    String entry = load().getProperty(key);
+    if (entry == null) {
+      return Optional.absent();
+    }
+    try {
+      String[] fields = entry.split(";");
+      long timestamp = Long.parseLong(fields[0]);
+      if (System.currentTimeMillis() - timestamp > ttl) {
+        return Optional.absent();
+      }
+      InetAddress publicIp = InetAddress.getByName(fields[1]);
+      NatType natType;
+      switch (fields[2]) {
+        case OPEN:
+          natType = NatType.open();
+          break;
+        case PORT_FORWARDING:
+          natType = NatType.natPortForwarding();
+          break;
+        case NAT:
+          natType = NatType.nated(Nat.MappingPolicy.valueOf(fields[3]), Nat.AllocationPolicy.valueOf(fields[4]), 0,
+            Nat.FilteringPolicy.valueOf(fields[5]), 10000);
+          break;
+        default:
+          return Optional.absent();
+      }
+      return Optional.of(Pair.with(natType, publicIp));
+    } catch (UnknownHostException | RuntimeException ex) {
+      LOG.warn("bad nat cache entry:{}", entry);
+      return Optional.absent();
+    }
+  }
+
+  public void put(String key, NatType natType, InetAddress publicIp) {
+    String kind;
+    if (natType.isOpen()) {
+      kind = OPEN;
+    } else if (natType.isNatPortForwarding()) {
+      kind = PORT_FORWARDING;
+    } else if (natType.isNat() && !Nat.AllocationPolicy.PORT_CONTIGUITY.equals(natType.allocationPolicy)) {
+      kind = NAT + ";" + natType.mappingPolicy + ";" + natType.allocationPolicy + ";" + natType.filteringPolicy;
+    } else {
+      return;
+    }
+    Properties entries = load();
+    entries.setProperty(key, System.currentTimeMillis() + ";" + publicIp.getHostAddress() + ";" + kind);
+    try (OutputStream out = new FileOutputStream(file)) {
+      entries.store(out, "nat detection cache");
+    } catch (IOException ex) {
+      LOG.warn("could not write nat cache:{}", file);
+    }
+  }
+
+  private Properties load() {
+    Properties entries = new Properties();
+    if (!file.exists()) {
+      return entries;
+    }
+    try (InputStream in = new FileInputStream(file)) {
+      entries.load(in);
+    } catch (IOException ex) {
+      LOG.warn("could not read nat cache:{}", file);
+    }
+    return entries;
+  }
+}
@@ -28,8 +28,21 @@ import se.sics.kompics.config.Config;
  */
 public class NetworkAuxKCWrapper {
     public final Optional<InetAddress> publicIp;
+    //race an upnp port mapping against the stun detection
+    public final boolean upnp;
+    //how long a stun nat result waits for the upnp mapping to answer
+    public final long upnpTimeout;
+    //seconds, 0 - no expiry
+    public final int upnpLease;
+    //file of the last upnp gateway - no file, no cache
+    public final Optional<String> upnpCache;
     
     public NetworkAuxKCWrapper(Config config) {
         publicIp = NetworkAuxKConfig.publicIp.readValue(config);
+        upnp = config.readValue(NetworkAuxKConfig.upnp.name, NetworkAuxKConfig.upnp.type).or(false);
+        upnpTimeout = config.readValue(NetworkAuxKConfig.upnpTimeout.name, NetworkAuxKConfig.upnpTimeout.type)
+            .or(5000l);
+        upnpLease = config.readValue(NetworkAuxKConfig.upnpLease.name, NetworkAuxKConfig.upnpLease.type).or(60 * 60);
+        upnpCache = config.readValue(NetworkAuxKConfig.upnpCache.name, NetworkAuxKConfig.upnpCache.type);
     }
 }
@@ -18,6 +18,7 @@
  */
 package se.sics.nat.mngr;
 
+import se.sics.ktoolbox.util.config.KConfigOption;
 import se.sics.ktoolbox.util.config.options.InetAddressOption;
 
 /**
@@ -26,4 +27,11 @@ import se.sics.ktoolbox.util.config.options.InetAddressOption;
  */
 public class NetworkAuxKConfig {
     public static final InetAddressOption publicIp = new InetAddressOption("network.publicIp");
+    public static final KConfigOption.Basic<Boolean> upnp = new KConfigOption.Basic("network.upnp", Boolean.class);
+    public static final KConfigOption.Basic<Long> upnpTimeout = new KConfigOption.Basic("network.upnp.timeout",
+        Long.class);
+    public static final KConfigOption.Basic<Integer> upnpLease = new KConfigOption.Basic("network.upnp.lease",
+        Integer.class);
+    public static final KConfigOption.Basic<String> upnpCache = new KConfigOption.Basic("network.upnp.cache",
+        String.class);
 }
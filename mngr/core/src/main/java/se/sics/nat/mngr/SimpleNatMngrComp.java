@@ -20,10 +20,12 @@ package se.sics.nat.mngr;
 
 import java.net.InetAddress;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 import org.javatuples.Pair;
 import org.slf4j.Logger;
@@ -69,9 +71,33 @@ import se.sics.ktoolbox.util.status.Status;
 import se.sics.ktoolbox.util.status.StatusPort;
 import se.sics.nat.detection.NatDetectionComp;
 import se.sics.nat.detection.NatDetectionPort;
+import se.sics.nat.detection.event.NatDetect;
 import se.sics.nat.detection.event.NatDetected;
+import se.sics.nat.detection.event.NatDetectionRelease;
+import se.sics.nat.detection.event.NatDetectionReleased;
+import se.sics.nat.stun.upnp.UPnPPort;
+import se.sics.nat.stun.upnp.UpnpComp;
+import se.sics.nat.stun.upnp.event.UPnPMap;
+import se.sics.nat.stun.upnp.event.UPnPMapLost;
+import se.sics.nat.stun.upnp.event.UPnPReady;
+import se.sics.nat.stun.upnp.event.UPnPUnmap;
+import se.sics.nat.stun.upnp.util.Protocol;
 
 /**
+ * The nat detection component is created once and kept - retries after udp
+ * blocked are NatDetect requests on it, and with nat monitoring on it reports
+ * changes later on. A later NatDetected rebinds the
+ * application ports with the new address and announces a new NetMngrReady on
+ * the status port.
+ * <p>
+ * With network.upnp on, an upnp port mapping races the stun detection. A
+ * mapping of all the application ports wins right away and the nat detection
+ * is killed. A stun result waits for the upnp answer (network.upnp.timeout)
+ * unless it is open or the timeout passed - then the upnp component is killed
+ * instead. A udp blocked stun result is no result: upnp stays in the race and
+ * stun is retried. If the gateway later stops renewing the mappings, the nat
+ * detection is started again and its result rebinds the application ports.
+ *
  * @author Alex Ormenisan <aaor@kth.se>
  */
 public class SimpleNatMngrComp extends ComponentDefinition {
@@ -90,6 +116,7 @@ public class SimpleNatMngrComp extends ComponentDefinition {
   Positive<IpSolverPort> ipSolverPort = requires(IpSolverPort.class);
   Positive<NxNetPort> nxNetPort = requires(NxNetPort.class);
   Positive<NatDetectionPort> natDetectionPort = requires(NatDetectionPort.class);
+  Positive<UPnPPort> upnpPort = requires(UPnPPort.class);
   //****************************CONFIGURATION*********************************
   private final SystemKCWrapper systemConfig;
   private final NetworkKCWrapper netConfig;
@@ -103,13 +130,26 @@ public class SimpleNatMngrComp extends ComponentDefinition {
   private Component ipSolverComp;
   private Component nxNetComp;
   private Pair<Component, Channel[]> natDetection;
+  //NatDetectionRelease sent - killed once its stun ports are unbound
+  private boolean natDetectionReleasing = false;
+  //upnp mappings lost while releasing - start a new detection after
+  private boolean stunFallback = false;
   private Component chunkMngrComp;
+  private Pair<Component, Channel> upnp;
   //****************************AUX_STATE*************************************
   private UUID natDetectionRetryTid;
+  //upnp still in the race
+  private boolean upnpPending = false;
+  private InetAddress upnpIp;
+  //stun result waiting for the upnp answer
+  private NatDetected heldStunResult;
+  private UUID upnpTid;
   //proxied
   private Map<Identifier, NetMngrBind.Request> proxiedPendingBind = new HashMap<>();
   private Map<Identifier, NetMngrUnbind.Request> proxiedPendingUnbind = new HashMap<>();
   private int boundAdr = 1;
+  //app port unbinds of a rebind in progress
+  private final Set<Identifier> appUnbinds = new HashSet<>();
   private final IdentifierFactory eventIds;
 
   public SimpleNatMngrComp(Init init) {
@@ -127,6 +167,12 @@ public class SimpleNatMngrComp extends ComponentDefinition {
     subscribe(handlePrivateIpDetected, ipSolverPort);
     subscribe(handleNatDetectionRetry, timerPort);
     subscribe(handleNatDetected, natDetectionPort);
+    subscribe(handleNatDetectionReleased, natDetectionPort);
+    subscribe(handleUpnpTimeout, timerPort);
+    subscribe(handleUpnpReady, upnpPort);
+    subscribe(handleUpnpMapped, upnpPort);
+    subscribe(handleUpnpUnmapped, upnpPort);
+    subscribe(handleUpnpMapLost, upnpPort);
     subscribe(handleBindReq, netMngrPort);
     subscribe(handleBindResp, nxNetPort);
     subscribe(handleUnbindReq, netMngrPort);
@@ -150,6 +196,7 @@ public class SimpleNatMngrComp extends ComponentDefinition {
   @Override
   public void tearDown() {
     cancelNatDetectionRetry();
+    cancelUpnpTimeout();
   }
 
   private void setIpSolver() {
@@ -181,13 +228,37 @@ public class SimpleNatMngrComp extends ComponentDefinition {
     natDetection = Pair.with(natDetectionComp, natDetectionChannels);
   }
 
+  /**
+   * the stun client ports are bound by the nat detection component in our
+   * NxNetComp - let it unbind them before it is killed
+   */
+  private void releaseNatDetection() {
+    natDetectionReleasing = true;
+    trigger(new NatDetectionRelease(eventIds.randomId()), natDetectionPort);
+  }
+
   private void cleanupNatDetection() {
+    natDetectionReleasing = false;
     disconnect(natDetection.getValue1()[0]);
     disconnect(natDetection.getValue1()[1]);
     trigger(Kill.event, natDetection.getValue0().control());
     natDetection = null;
   }
 
+  private void setUpnp() {
+    UpnpComp.Init upnpInit = new UpnpComp.Init(systemConfig.seed, "nat" + systemConfig.id,
+      Optional.ofNullable(netAuxConfig.upnpCache.orNull()), netAuxConfig.upnpLease);
+    Component upnpComp = create(UpnpComp.class, upnpInit);
+    Channel upnpChannel = connect(upnpComp.getPositive(UPnPPort.class), upnpPort.getPair(), Channel.TWO_WAY);
+    upnp = Pair.with(upnpComp, upnpChannel);
+  }
+
+  private void cleanupUpnp() {
+    disconnect(upnp.getValue1());
+    trigger(Kill.event, upnp.getValue0().control());
+    upnp = null;
+  }
+
   private void bindAppNetwork() {
     NxNetBind.Request mainReq;
     if (natType.isOpen()) {
@@ -231,6 +302,12 @@ public class SimpleNatMngrComp extends ComponentDefinition {
       privateIp = resp.boundIp;
       setNatDetection();
       trigger(Start.event, natDetection.getValue0().control());
+      if (netAuxConfig.upnp) {
+        setUpnp();
+        upnpPending = true;
+        scheduleUpnpTimeout(netAuxConfig.upnpTimeout);
+        trigger(Start.event, upnp.getValue0().control());
+      }
     }
   };
 
@@ -238,8 +315,8 @@ public class SimpleNatMngrComp extends ComponentDefinition {
     @Override
     public void handle(NatDetectionRetry timeout) {
       natDetectionRetryTid = null;
-      setNatDetection();
-      trigger(Start.event, natDetection.getValue0().control());
+      //same detection component and stun ports - just ask again
+      trigger(new NatDetect(eventIds.randomId()), natDetectionPort);
     }
   };
 
@@ -248,24 +325,237 @@ public class SimpleNatMngrComp extends ComponentDefinition {
     public void handle(NatDetected event) {
       LOG.info("{}detected nat - public ip:{} nat type:{}",
         new Object[]{logPrefix, (event.publicIp.isPresent() ? event.publicIp.get() : "x"), event.natType});
-      natType = event.natType;
-      if (natType.isBlocked()) {
-        LOG.warn("{}detected UDP blocked - might mean I could not connect to stun servers - retrying", logPrefix);
+      if (natDetectionReleasing) {
+        //upnp won - stun results no longer matter
+        return;
+      }
+      if (selfAdr != null) {
+        natChanged(event);
+        return;
+      }
+      if (upnpPending) {
+        if (event.natType.isBlocked()) {
+          //no stun result at all - upnp may still map, retry stun alongside it
+          LOG.info("{}stun blocked - upnp stays in the race, retrying stun", logPrefix);
+          scheduleNatDetectionRetry(30000);
+          return;
+        }
+        //upnp timeout already passed - do not wait on it any longer
+        if (!event.natType.isOpen() && upnpTid != null) {
+          LOG.info("{}waiting for upnp before using the stun result", logPrefix);
+          heldStunResult = event;
+          return;
+        }
+        LOG.info("{}stun won - upnp not needed", logPrefix);
+        heldStunResult = null;
+        upnpLost();
+      }
+      stunDetected(event);
+    }
+  };
+
+  Handler handleNatDetectionReleased = new Handler<NatDetectionReleased>() {
+    @Override
+    public void handle(NatDetectionReleased event) {
+      LOG.trace("{}received:{}", logPrefix, event);
+      if (natDetection != null) {
         cleanupNatDetection();
-        scheduleNatDetectionRetry(30000);
+      }
+      if (stunFallback) {
+        stunFallback = false;
+        setNatDetection();
+        trigger(Start.event, natDetection.getValue0().control());
+      }
+    }
+  };
+
+  private void stunDetected(NatDetected event) {
+    natType = event.natType;
+    if (natType.isBlocked()) {
+      LOG.warn("{}detected UDP blocked - might mean I could not connect to stun servers - retrying", logPrefix);
+      scheduleNatDetectionRetry(30000);
+      return;
+    }
+    if (!(natType.isSimpleNat() || natType.isOpen() || natType.isNatPortForwarding() || natType.isNat())) {
+      LOG.error("{}currently only open, simple nats or port forwarding allowed");
+      publicIp = privateIp;
+    } else {
+      publicIp = event.publicIp.get();
+    }
+    bindAppNetwork();
+  }
+
+  private void natChanged(NatDetected event) {
+    if (event.natType.isBlocked()) {
+      LOG.warn("{}nat monitor lost the stun servers - keeping address:{}", logPrefix, selfAdr);
+      return;
+    }
+    if (!appUnbinds.isEmpty() || boundAdr != 0) {
+      LOG.warn("{}nat changed while (re)binding - ignoring", logPrefix);
+      return;
+    }
+    LOG.info("{}nat changed - rebinding", logPrefix);
+    natType = event.natType;
+    if (!(natType.isSimpleNat() || natType.isOpen() || natType.isNatPortForwarding() || natType.isNat())) {
+      publicIp = privateIp;
+    } else {
+      publicIp = event.publicIp.get();
+    }
+    int ports = systemConfig.parallelPorts.isPresent() ? systemConfig.parallelPorts.get() : 1;
+    for (int i = 0; i < ports; i++) {
+      NxNetUnbind.Request unbindReq = new NxNetUnbind.Request(eventIds.randomId(), systemConfig.port + i);
+      appUnbinds.add(unbindReq.getId());
+      trigger(unbindReq, nxNetPort);
+    }
+  }
+
+  //*********************************UPNP*************************************
+  Handler handleUpnpReady = new Handler<UPnPReady>() {
+    @Override
+    public void handle(UPnPReady event) {
+      LOG.info("{}upnp ready - external ip:{}", logPrefix,
+        (event.externalIp.isPresent() ? event.externalIp.get() : "x"));
+      if (!upnpPending) {
         return;
       }
-      if (!(natType.isSimpleNat() || natType.isOpen() || natType.isNatPortForwarding() || natType.isNat())) {
-        LOG.error("{}currently only open, simple nats or port forwarding allowed");
-        publicIp = privateIp;
-      } else {
-        publicIp = event.publicIp.get();
+      if (!event.externalIp.isPresent()) {
+        upnpLost();
+        return;
+      }
+      upnpIp = event.externalIp.get();
+      trigger(new UPnPMap.Request(eventIds.randomId(), appPorts()), upnpPort);
+    }
+  };
+
+  Handler handleUpnpMapped = new Handler<UPnPMap.Response>() {
+    @Override
+    public void handle(UPnPMap.Response resp) {
+      LOG.trace("{}received:{}", logPrefix, resp);
+      if (!upnpPending) {
+        return;
       }
-      cleanupNatDetection();
+      if (resp.ports.size() < appPorts().size()) {
+        LOG.info("{}upnp mapped only:{} ports", logPrefix, resp.ports.size());
+        if (resp.ports.isEmpty()) {
+          upnpLost();
+        } else {
+          //partial mapping is of no use - kill the component once the mappings are removed
+          upnpPending = false;
+          cancelUpnpTimeout();
+          trigger(new UPnPUnmap.Request(eventIds.randomId(), resp.ports), upnpPort);
+          releaseHeldStunResult();
+        }
+        return;
+      }
+      LOG.info("{}upnp won - public ip:{}", logPrefix, upnpIp);
+      upnpPending = false;
+      cancelUpnpTimeout();
+      heldStunResult = null;
+      cancelNatDetectionRetry();
+      releaseNatDetection();
+      natType = NatType.natPortForwarding();
+      publicIp = upnpIp;
       bindAppNetwork();
     }
   };
 
+  Handler handleUpnpUnmapped = new Handler<UPnPUnmap.Response>() {
+    @Override
+    public void handle(UPnPUnmap.Response resp) {
+      LOG.trace("{}received:{}", logPrefix, resp);
+      if (upnp != null) {
+        cleanupUpnp();
+      }
+    }
+  };
+
+  Handler handleUpnpMapLost = new Handler<UPnPMapLost>() {
+    @Override
+    public void handle(UPnPMapLost event) {
+      LOG.warn("{}upnp mappings lost:{}", logPrefix, event.ports.keySet());
+      if (upnpPending || (natDetection != null && !natDetectionReleasing)) {
+        return;
+      }
+      LOG.info("{}falling back to stun", logPrefix);
+      cleanupUpnp();
+      if (natDetection != null) {
+        //old detection still releasing its stun ports - start again once it is gone
+        stunFallback = true;
+        return;
+      }
+      setNatDetection();
+      trigger(Start.event, natDetection.getValue0().control());
+    }
+  };
+
+  Handler handleUpnpTimeout = new Handler<UpnpTimeout>() {
+    @Override
+    public void handle(UpnpTimeout timeout) {
+      upnpTid = null;
+      if (upnpPending && heldStunResult != null) {
+        LOG.info("{}upnp timed out - using the stun result", logPrefix);
+        upnpLost();
+      }
+      //no stun result yet - upnp stays in the race
+    }
+  };
+
+  /**
+   * upnp is out of the race - kill it and use the stun result if it is waiting
+   */
+  private void upnpLost() {
+    upnpPending = false;
+    cancelUpnpTimeout();
+    cleanupUpnp();
+    releaseHeldStunResult();
+  }
+
+  private void releaseHeldStunResult() {
+    if (heldStunResult != null) {
+      NatDetected stunResult = heldStunResult;
+      heldStunResult = null;
+      stunDetected(stunResult);
+    }
+  }
+
+  private Map<Integer, Pair<Protocol, Integer>> appPorts() {
+    Map<Integer, Pair<Protocol, Integer>> ports = new HashMap<>();
+    int nrPorts = systemConfig.parallelPorts.isPresent() ? systemConfig.parallelPorts.get() : 1;
+    for (int i = 0; i < nrPorts; i++) {
+      ports.put(systemConfig.port + i, Pair.with(Protocol.UDP, systemConfig.port + i));
+    }
+    return ports;
+  }
+
+  private void scheduleUpnpTimeout(long period) {
+    ScheduleTimeout st = new ScheduleTimeout(period);
+    UpnpTimeout ut = new UpnpTimeout(st);
+    st.setTimeoutEvent(ut);
+    trigger(st, timerPort);
+    upnpTid = ut.getTimeoutId();
+  }
+
+  private void cancelUpnpTimeout() {
+    if (upnpTid == null) {
+      return;
+    }
+    CancelTimeout ct = new CancelTimeout(upnpTid);
+    upnpTid = null;
+    trigger(ct, timerPort);
+  }
+
+  private static class UpnpTimeout extends Timeout {
+
+    UpnpTimeout(ScheduleTimeout request) {
+      super(request);
+    }
+
+    @Override
+    public String toString() {
+      return "UpnpTimeout";
+    }
+  }
+
   private void scheduleNatDetectionRetry(long period) {
     if (natDetectionRetryTid != null) {
       LOG.warn("{}double starting nat detection timeout", logPrefix);
@@ -357,6 +647,13 @@ public class SimpleNatMngrComp extends ComponentDefinition {
     @Override
     public void handle(NxNetUnbind.Response resp) {
       LOG.trace("{}received:{}", logPrefix, resp);
+      if (appUnbinds.remove(resp.getId())) {
+        if (appUnbinds.isEmpty()) {
+          boundAdr = 1;
+          bindAppNetwork();
+        }
+        return;
+      }
       NetMngrUnbind.Request req = proxiedPendingUnbind.remove(resp.getId());
       if (req == null) {
         throw new RuntimeException("logic error - cleanup problems");
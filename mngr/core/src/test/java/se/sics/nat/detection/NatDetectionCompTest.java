@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * NatTraverser is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.nat.detection;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import se.sics.kompics.Channel;
+import se.sics.kompics.Component;
+import se.sics.kompics.ComponentDefinition;
+import se.sics.kompics.Handler;
+import se.sics.kompics.Init;
+import se.sics.kompics.Kompics;
+import se.sics.kompics.Negative;
+import se.sics.kompics.Positive;
+import se.sics.kompics.Start;
+import se.sics.kompics.network.Msg;
+import se.sics.kompics.network.Network;
+import se.sics.kompics.timer.Timer;
+import se.sics.kompics.timer.java.JavaTimer;
+import se.sics.kompics.util.Identifier;
+import se.sics.ktoolbox.netmngr.nxnet.NxNetBind;
+import se.sics.ktoolbox.netmngr.nxnet.NxNetPort;
+import se.sics.ktoolbox.netmngr.nxnet.NxNetUnbind;
+import se.sics.ktoolbox.util.identifiable.IdentifierRegistryV2;
+import se.sics.ktoolbox.util.network.KContentMsg;
+import se.sics.ktoolbox.util.network.nat.NatType;
+import se.sics.nat.detection.event.NatDetected;
+import se.sics.nat.detection.util.NatDetectionCache;
+import se.sics.nat.stun.event.StunEcho;
+
+/**
+ * Runs a NatDetectionComp with a cached open nat and monitoring on. The first
+ * echo - the cache revalidation - is answered, every monitor check after it is
+ * dropped.
+ *
+ * @author Alex Ormenisan <aaor@kth.se>
+ */
+public class NatDetectionCompTest {
+
+  private static final InetAddress privateIp = InetAddress.getLoopbackAddress();
+  private static final BlockingQueue<NatDetected> detected = new LinkedBlockingQueue<>();
+  private static final BlockingQueue<StunEcho.Request> dropped = new LinkedBlockingQueue<>();
+
+  @BeforeClass
+  public static void setup() throws IOException {
+    IdentifierRegistryV2.registerBaseDefaults1(64);
+
+    File cacheFile = File.createTempFile("natcache", ".properties");
+    cacheFile.deleteOnExit();
+    new NatDetectionCache(cacheFile, 60 * 60 * 1000l).put(NatDetectionCache.key(privateIp), NatType.open(), privateIp);
+    System.setProperty(NatDetectionKConfig.cacheFile.name, cacheFile.getAbsolutePath());
+  }
+
+  @Test
+  public void testMonitorAfterCheckTimeout() throws InterruptedException {
+    Kompics.createAndStart(TestHost.class, 1);
+    try {
+      NatDetected result = detected.poll(5, TimeUnit.SECONDS);
+      Assert.assertNotNull(result);
+      Assert.assertTrue(result.natType.isOpen());
+
+      //a new check per tick - retransmissions reuse the msgId of their check
+      Set<Identifier> checks = new HashSet<>();
+      long deadline = System.currentTimeMillis() + 5000;
+      while (checks.size() < 2) {
+        StunEcho.Request req = dropped.poll(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        Assert.assertNotNull("no monitor check after a timed out one", req);
+        checks.add(req.msgId);
+      }
+    } finally {
+      Kompics.shutdown();
+    }
+  }
+
+  public static class TestHost extends ComponentDefinition {
+
+    private final Positive<NatDetectionPort> natDetectionPort = requires(NatDetectionPort.class);
+
+    public TestHost() {
+      Component timer = create(JavaTimer.class, Init.NONE);
+      Component network = create(FirstEchoNetwork.class, Init.NONE);
+      Component nxNet = create(LocalNxNet.class, Init.NONE);
+      NatDetectionComp.ExtPort extPorts = new NatDetectionComp.ExtPort(timer.getPositive(Timer.class),
+        network.getPositive(Network.class));
+      Component natDetection = create(NatDetectionComp.class, new NatDetectionComp.Init(extPorts, privateIp));
+      connect(natDetection.getNegative(NxNetPort.class), nxNet.getPositive(NxNetPort.class), Channel.TWO_WAY);
+      connect(natDetection.getPositive(NatDetectionPort.class), natDetectionPort.getPair(), Channel.TWO_WAY);
+      subscribe(handleDetected, natDetectionPort);
+    }
+
+    Handler handleDetected = new Handler<NatDetected>() {
+      @Override
+      public void handle(NatDetected event) {
+        detected.offer(event);
+      }
+    };
+  }
+
+  public static class FirstEchoNetwork extends ComponentDefinition {
+
+    private final Negative<Network> networkPort = provides(Network.class);
+    private boolean answered = false;
+
+    public FirstEchoNetwork() {
+      subscribe(handleMsg, networkPort);
+    }
+
+    Handler handleMsg = new Handler<Msg>() {
+      @Override
+      public void handle(Msg msg) {
+        if (!(msg instanceof KContentMsg) || !(((KContentMsg) msg).getContent() instanceof StunEcho.Request)) {
+          return;
+        }
+        KContentMsg container = (KContentMsg) msg;
+        StunEcho.Request req = (StunEcho.Request) container.getContent();
+        if (answered) {
+          dropped.offer(req);
+          return;
+        }
+        answered = true;
+        trigger(container.answer(req.answer(container.getHeader().getSource())), networkPort);
+      }
+    };
+  }
+
+  public static class LocalNxNet extends ComponentDefinition {
+
+    private final Negative<NxNetPort> nxNetPort = provides(NxNetPort.class);
+
+    public LocalNxNet() {
+      subscribe(handleBind, nxNetPort);
+      subscribe(handleUnbind, nxNetPort);
+    }
+
+    Handler handleBind = new Handler<NxNetBind.Request>() {
+      @Override
+      public void handle(NxNetBind.Request req) {
+        answer(req, req.answer());
+      }
+    };
+
+    Handler handleUnbind = new Handler<NxNetUnbind.Request>() {
+      @Override
+      public void handle(NxNetUnbind.Request req) {
+        answer(req, req.answer());
+      }
+    };
+  }
+}
@@ -26,6 +26,10 @@ import se.sics.kompics.PortType;
  */
 public class StunClientPort extends PortType {
     {
+        request(StunNatDetect.class);
+        request(StunServerCandidates.class);
+        request(StunEchoCheck.class);
         indication(StunNatDetected.class);
+        indication(StunEchoChecked.class);
     }
 }
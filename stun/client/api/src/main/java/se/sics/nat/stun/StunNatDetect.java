@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * NatTraverser is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.nat.stun;
+
+import com.google.common.base.Optional;
+import se.sics.kompics.util.Identifier;
+import se.sics.nat.stun.event.StunEvent;
+import se.sics.nat.stun.util.StunView;
+
+/**
+ * Starts a new echo session on an already running stun client. The session is
+ * identified by the eventId of the request and the matching
+ * {@link StunNatDetected} carries the same id.
+ *
+ * @author Alex Ormenisan <aaor@kth.se>
+ */
+public class StunNatDetect implements StunEvent {
+
+  public final Identifier eventId;
+  public final Optional<StunView> stunView;
+
+  /**
+   * @param stunView - optional - missing means the client picks the best known stun servers
+   */
+  public StunNatDetect(Identifier eventId, Optional<StunView> stunView) {
+    this.eventId = eventId;
+    this.stunView = stunView;
+  }
+
+  public StunNatDetect(Identifier eventId) {
+    this(eventId, Optional.<StunView>absent());
+  }
+
+  @Override
+  public Identifier getId() {
+    return eventId;
+  }
+
+  @Override
+  public String toString() {
+    return "StunNatDetect<" + eventId + ">";
+  }
+}
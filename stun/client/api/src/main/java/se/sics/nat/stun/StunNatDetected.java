@@ -34,6 +34,7 @@ public class StunNatDetected implements StunEvent {
   public Optional<InetAddress> publicIp;
 
   /**
+   * @param eventId - the id of the echo session that produced this result
    * @param natType
    * @param publicIp - optional - missing only if natType - udpBlocked
    */
@@ -20,6 +20,13 @@ package se.sics.nat.stun.client;
 
 import com.google.common.base.Optional;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.function.Consumer;
 import org.javatuples.Pair;
@@ -32,6 +39,7 @@ import se.sics.kompics.Start;
 import se.sics.kompics.network.Network;
 import se.sics.kompics.network.Transport;
 import se.sics.kompics.timer.Timer;
+import se.sics.kompics.util.Identifier;
 import se.sics.ktoolbox.nutil.timer.TimerProxy;
 import se.sics.ktoolbox.nutil.timer.TimerProxyImpl;
 import se.sics.ktoolbox.util.config.impl.SystemKCWrapper;
@@ -47,9 +55,14 @@ import se.sics.ktoolbox.util.network.nat.Nat;
 import se.sics.ktoolbox.util.network.nat.NatAwareAddress;
 import se.sics.ktoolbox.util.network.nat.NatType;
 import se.sics.nat.stun.StunClientPort;
+import se.sics.nat.stun.StunEchoCheck;
+import se.sics.nat.stun.StunNatDetect;
 import se.sics.nat.stun.StunNatDetected;
+import se.sics.nat.stun.StunServerCandidates;
+import se.sics.nat.stun.client.util.StunServerSelector;
 import se.sics.nat.stun.client.util.StunSession;
 import se.sics.nat.stun.event.StunEcho;
+import se.sics.nat.stun.util.RTTEstimator;
 import se.sics.nat.stun.util.StunView;
 
 /**
@@ -94,8 +107,21 @@ import se.sics.nat.stun.util.StunView;
  * measure UDP-2, but a NAT will refresh with UDP-1. Therefore, we need to be
  * conservative in setting the NAT binding timeout.
  *
+ * The client can run several echo sessions at the same time - one is started
+ * on Start, further sessions are started by StunNatDetect requests. Sessions
+ * are identified by sessionId and responses are routed to their session by
+ * StunEcho.Response.sessionId.
+ *
+ * Unless the request names the stun servers, a session first probes (single
+ * SIP_SP from the second port, so the filtering tests on the first port are
+ * not affected) the candidate servers it has no rtt for and then runs against
+ * the best ranked pair - see StunServerSelector. Candidates come from Init and
+ * from StunServerCandidates.
+ *
+ * StunEchoCheck is a single SIP_SP echo used to confirm a known public mapping
+ * without a full session. A client started with detectOnStart false only
+ * does what it is asked to.
  */
-//TODO Alex - currently Stun does one session 
 public class StunClientComp extends ComponentDefinition {
 
   //******************************CONNECTIONS*********************************
@@ -105,10 +131,23 @@ public class StunClientComp extends ComponentDefinition {
   private final TimerProxy timer;
   //*******************************CONFIG*************************************
   private final StunClientKCWrapper stunClientConfig;
+  private final Pair<NatAwareAddress, NatAwareAddress> selfAdr;
+  private final StunView defaultStunView;
   //****************************STATE_INTERNAL********************************
-  private StunSession session;
-  private UUID echoTId;
+  //<sessionId, session>
+  private final Map<Identifier, StunSession> sessions = new HashMap<>();
+  //<msgId, echo>
+  private final Map<Identifier, PendingEcho> pendingEchoes = new HashMap<>();
+  //shared by all sessions - keyed by stun server id
+  private final RTTEstimator rttEstimator;
+  private final StunServerSelector selector;
+  //<sessionId, pending probe msgIds> - sessions waiting on server selection
+  private final Map<Identifier, Set<Identifier>> selections = new HashMap<>();
+  //<eventId, check>
+  private final Map<Identifier, StunEchoCheck> checks = new HashMap<>();
+  private final boolean detectOnStart;
   private final IdentifierFactory eventIds;
+  private final IdentifierFactory msgIds;
 
   public StunClientComp(Init init) {
     loggingCtxPutAlways("nid", init.selfAdr.getValue0().getId().toString());
@@ -118,19 +157,33 @@ public class StunClientComp extends ComponentDefinition {
 
     this.eventIds = IdentifierRegistryV2.instance(BasicIdentifiers.Values.EVENT,
       java.util.Optional.of(systemConfig.seed));
-    session = new StunSession(eventIds.randomId(), init.selfAdr,
-      Pair.with(init.stunView.selfStunAdr, init.stunView.partnerStunAdr.get()));
+    this.msgIds = IdentifierRegistryV2.instance(BasicIdentifiers.Values.MSG,
+      java.util.Optional.of(systemConfig.seed));
+    selfAdr = init.selfAdr;
+    defaultStunView = init.stunViews.get(0);
+    detectOnStart = init.detectOnStart;
+    rttEstimator = new RTTEstimator(stunClientConfig.rtoInit, stunClientConfig.rtoMin, stunClientConfig.rtoMax);
+    selector = new StunServerSelector(rttEstimator, stunClientConfig.selectMax,
+      stunClientConfig.selectUnreachableTtl);
+    for (StunView stunView : init.stunViews) {
+      selector.addCandidate(stunView);
+    }
     timer = new TimerProxyImpl();
 
     subscribe(handleStart, control);
+    subscribe(handleDetect, stunPort);
+    subscribe(handleCandidates, stunPort);
+    subscribe(handleEchoCheck, stunPort);
     subscribe(handleEchoResponse, networkPort);
   }
   //*******************************CONTROL************************************
   Handler handleStart = new Handler<Start>() {
     @Override
     public void handle(Start event) {
-      startEchoSession();
       timer.setup(proxy, logger);
+      if (detectOnStart) {
+        selectAndStart(eventIds.randomId());
+      }
     }
   };
 
@@ -139,8 +192,107 @@ public class StunClientComp extends ComponentDefinition {
     timer.cancel();
   }
 
+  Handler handleDetect = new Handler<StunNatDetect>() {
+    @Override
+    public void handle(StunNatDetect req) {
+      logger.trace("received:{}", req);
+      if (req.stunView.isPresent()) {
+        startEchoSession(req.eventId, req.stunView.get());
+      } else {
+        selectAndStart(req.eventId);
+      }
+    }
+  };
+
+  Handler handleCandidates = new Handler<StunServerCandidates>() {
+    @Override
+    public void handle(StunServerCandidates req) {
+      logger.trace("received:{}", req);
+      for (StunView stunView : req.candidates) {
+        selector.addCandidate(stunView);
+      }
+    }
+  };
+
+  Handler handleEchoCheck = new Handler<StunEchoCheck>() {
+    @Override
+    public void handle(StunEchoCheck req) {
+      logger.trace("received:{}", req);
+      if (checks.containsKey(req.eventId)) {
+        logger.warn("check:{} already running", req.eventId);
+        return;
+      }
+      NatAwareAddress server = selector.best().or(defaultStunView).selfStunAdr.getValue0();
+      StunEcho.Request echoReq = new StunEcho.Request(msgIds.randomId(), req.eventId, StunEcho.Type.SIP_SP, null);
+      PendingEcho check = new PendingEcho(req.eventId, echoReq, Pair.with(selfAdr.getValue0(), server), server.getId(),
+        stunClientConfig.echoRetries);
+      check.kind = EchoKind.CHECK;
+      check.timeout = echoTimeout(check);
+      checks.put(req.eventId, req);
+      sendEcho(check);
+    }
+  };
+
+  private void checkDone(PendingEcho check, Optional<NatAwareAddress> observed) {
+    StunEchoCheck req = checks.remove(check.sessionId);
+    if (req != null) {
+      trigger(req.answer(observed), stunPort);
+    }
+  }
+
+  //*****************************SELECTION************************************
+  private void selectAndStart(Identifier sessionId) {
+    if (sessions.containsKey(sessionId) || selections.containsKey(sessionId)) {
+      logger.warn("session:{} already running", sessionId);
+      return;
+    }
+    List<NatAwareAddress> unmeasured = selector.unmeasured();
+    //nothing to choose from - do not delay the session with probes
+    if (unmeasured.isEmpty() || selector.size() <= 1) {
+      startEchoSession(sessionId, selector.best().or(defaultStunView));
+      return;
+    }
+    logger.debug("session:{} probing:{} stun servers", sessionId, unmeasured.size());
+    Set<Identifier> probes = new HashSet<>();
+    for (NatAwareAddress server : unmeasured) {
+      StunEcho.Request req = new StunEcho.Request(msgIds.randomId(), sessionId, StunEcho.Type.SIP_SP, null);
+      PendingEcho probe = new PendingEcho(sessionId, req, Pair.with(selfAdr.getValue1(), server), server.getId(),
+        stunClientConfig.echoRetries);
+      probe.kind = EchoKind.PROBE;
+      probe.timeout = echoTimeout(probe);
+      probes.add(req.msgId);
+      sendEcho(probe);
+    }
+    selections.put(sessionId, probes);
+  }
+
+  private void probeDone(PendingEcho probe) {
+    Set<Identifier> probes = selections.get(probe.sessionId);
+    if (probes == null) {
+      return;
+    }
+    probes.remove(probe.req.msgId);
+    if (probes.isEmpty()) {
+      selections.remove(probe.sessionId);
+      startEchoSession(probe.sessionId, selector.best().or(defaultStunView));
+    }
+  }
+
   //********************************ECHO**************************************
-  private void startEchoSession() {
+  private void startEchoSession(Identifier sessionId, StunView stunView) {
+    if (sessions.containsKey(sessionId)) {
+      logger.warn("session:{} already running", sessionId);
+      return;
+    }
+    if (!stunView.hasPartner()) {
+      logger.warn("session:{} stun server:{} has no partner", sessionId, stunView);
+      Optional<InetAddress> missing = Optional.absent();
+      trigger(new StunNatDetected(sessionId, NatType.udpBlocked(), missing), stunPort);
+      return;
+    }
+    StunSession session = new StunSession(sessionId, selfAdr,
+      Pair.with(stunView.selfStunAdr, stunView.partnerStunAdr.get()), msgIds, stunClientConfig.pipelined);
+    sessions.put(sessionId, session);
     logger.info("starting new echo session:{}", session.sessionId);
     logger.info("stun server1:{} {}", 
       new Object[]{session.stunServers.getValue0().getValue0(), session.stunServers.getValue0().getValue1()});
@@ -150,41 +302,116 @@ public class StunClientComp extends ComponentDefinition {
   }
 
   private void processSession(StunSession session) {
-    Pair<StunEcho.Request, Pair<NatAwareAddress, NatAwareAddress>> next = session.next();
-    StunEcho.Request req = next.getValue0();
-    KAddress own = next.getValue1().getValue0();
-    KAddress partner = next.getValue1().getValue1();
-    KHeader<NatAwareAddress> requestHeader = new BasicHeader(own, partner,Transport.UDP);
-    KContentMsg request = new BasicContentMsg(requestHeader, req);
+    //DIP_DP requests are answered by one of the partners of the first stun server - not necessarily the advertised
+    //one, its rto only sizes the timeout
+    Identifier partnerId = session.stunServers.getValue1().getValue0().getId();
+    for (Pair<StunEcho.Request, Pair<NatAwareAddress, NatAwareAddress>> next : session.next()) {
+      StunEcho.Request req = next.getValue0();
+      Identifier answerSrc = StunEcho.Type.DIP_DP.equals(req.type) ? partnerId : next.getValue1().getValue1().getId();
+      PendingEcho echo = new PendingEcho(session.sessionId, req, next.getValue1(), answerSrc, echoRetries(req));
+      echo.timeout = echoTimeout(echo);
+      sendEcho(echo);
+    }
+  }
+
+  /**
+   * SIP_DP and DIP_DP silence is how filtering is detected, so we want more
+   * consecutive silent retransmissions before calling them filtered rather than lost
+   */
+  private int echoRetries(StunEcho.Request req) {
+    switch (req.type) {
+      case SIP_DP:
+      case DIP_DP:
+        return stunClientConfig.echoFilterRetries;
+      default:
+        return stunClientConfig.echoRetries;
+    }
+  }
+
+  private void sendEcho(PendingEcho echo) {
+    KHeader<NatAwareAddress> requestHeader = new BasicHeader(echo.route.getValue0(), echo.route.getValue1(),
+      Transport.UDP);
+    KContentMsg request = new BasicContentMsg(requestHeader, echo.req);
     logger.trace("sending:{}", new Object[]{request});
     trigger(request, networkPort);
-    echoTId = timer.scheduleTimer(stunClientConfig.ECHO_TIMEOUT, echoSessionTimeout(req, partner));
+    echo.sentAt = System.currentTimeMillis();
+    echo.tid = timer.scheduleTimer(echo.timeout, echoSessionTimeout(echo));
+    pendingEchoes.put(echo.req.msgId, echo);
   }
 
-  private Consumer<Boolean> echoSessionTimeout(StunEcho.Request req, KAddress partner) {
+  private long echoTimeout(PendingEcho echo) {
+    Identifier dstId = echo.route.getValue1().getId();
+    long timeout = rttEstimator.rto(dstId);
+    if (!dstId.equals(echo.answerSrc)) {
+      //one more server to server hop
+      timeout = Math.min(stunClientConfig.rtoMax, timeout + rttEstimator.rto(echo.answerSrc));
+    }
+    return timeout;
+  }
+
+  private Consumer<Boolean> echoSessionTimeout(PendingEcho echo) {
     return (_ignore) -> {
-      if (echoTId == null) {
+      if (pendingEchoes.remove(echo.req.msgId) == null) {
         //junk timeout - late
         return;
       }
-      logger.trace("timeout echo:{} to:{}", new Object[]{req, partner});
-      echoTId = null;
-      session.timeout();
-      if (!session.finished()) {
-        processSession(session);
-      } else {
-        processResult(session);
+      //probes and checks run outside of any session - sessionId is the selection/check eventId
+      boolean probe = EchoKind.PROBE.equals(echo.kind);
+      boolean check = EchoKind.CHECK.equals(echo.kind);
+      if (probe ? !selections.containsKey(echo.sessionId)
+        : check ? !checks.containsKey(echo.sessionId) : !sessions.containsKey(echo.sessionId)) {
+        return;
+      }
+      if (echo.retriesLeft > 0) {
+        //same msgId - a late answer to any of the copies is accepted
+        echo.retriesLeft--;
+        echo.retransmitted = true;
+        echo.timeout = Math.min(2 * echo.timeout, stunClientConfig.rtoMax);
+        logger.debug("retransmitting echo:{} to:{} retries left:{}",
+          new Object[]{echo.req, echo.route.getValue1(), echo.retriesLeft});
+        sendEcho(echo);
+        return;
       }
+      logger.trace("timeout echo:{} to:{}", new Object[]{echo.req, echo.route.getValue1()});
+      if (probe) {
+        logger.debug("stun server:{} unreachable", echo.answerSrc);
+        selector.unreachable(echo.answerSrc);
+        probeDone(echo);
+        return;
+      }
+      if (check) {
+        checkDone(echo, Optional.<NatAwareAddress>absent());
+        return;
+      }
+      StunSession session = sessions.get(echo.sessionId);
+      session.timeout(echo.req.msgId);
+      advanceSession(session);
     };
   }
 
+  private void advanceSession(StunSession session) {
+    if (!session.finished()) {
+      processSession(session);
+    } else {
+      //a pipelined session can finish with probes still in flight
+      for (Identifier msgId : session.pendingMsgs()) {
+        PendingEcho pending = pendingEchoes.remove(msgId);
+        if (pending != null) {
+          timer.cancelTimer(pending.tid);
+        }
+      }
+      sessions.remove(session.sessionId);
+      processResult(session);
+    }
+  }
+
   private void processResult(StunSession session) {
     StunSession.Result sessionResult = session.getResult();
     if (sessionResult.isFailed()) {
       logger.warn("result failed with:{}", sessionResult.failureDescription.get());
       //TODO Alex - act like udp blocked or unknown?
       Optional<InetAddress> missing = Optional.absent();
-      trigger(new StunNatDetected(eventIds.randomId(), NatType.udpBlocked(), missing), stunPort);
+      trigger(new StunNatDetected(session.sessionId, NatType.udpBlocked(), missing), stunPort);
       return;
     } else {
       if (stunClientConfig.stunClientOpenPorts.isPresent() && stunClientConfig.stunClientOpenPorts.get()) {
@@ -192,7 +419,7 @@ public class StunClientComp extends ComponentDefinition {
           && Nat.FilteringPolicy.ENDPOINT_INDEPENDENT.equals(sessionResult.filterPolicy.get())
           && Nat.MappingPolicy.PORT_DEPENDENT.equals(sessionResult.mappingPolicy.get())
           && Nat.AllocationPolicy.PORT_PRESERVATION.equals(sessionResult.allocationPolicy.get())) {
-          trigger(new StunNatDetected(eventIds.randomId(), NatType.natPortForwarding(), sessionResult.publicIp),
+          trigger(new StunNatDetected(session.sessionId, NatType.natPortForwarding(), sessionResult.publicIp),
             stunPort);
           return;
         }
@@ -201,13 +428,13 @@ public class StunClientComp extends ComponentDefinition {
       switch (sessionResult.natState.get()) {
         case UDP_BLOCKED:
           Optional<InetAddress> missing = Optional.absent();
-          trigger(new StunNatDetected(eventIds.randomId(), NatType.udpBlocked(), missing), stunPort);
+          trigger(new StunNatDetected(session.sessionId, NatType.udpBlocked(), missing), stunPort);
           break;
         case OPEN:
-          trigger(new StunNatDetected(eventIds.randomId(), NatType.open(), sessionResult.publicIp), stunPort);
+          trigger(new StunNatDetected(session.sessionId, NatType.open(), sessionResult.publicIp), stunPort);
           break;
         case FIREWALL:
-          trigger(new StunNatDetected(eventIds.randomId(), NatType.firewall(), sessionResult.publicIp), stunPort);
+          trigger(new StunNatDetected(session.sessionId, NatType.firewall(), sessionResult.publicIp), stunPort);
           break;
         case NAT:
           logger.info("{}result:NAT filter:{} mapping:{} allocation:{}",
@@ -222,7 +449,7 @@ public class StunClientComp extends ComponentDefinition {
             nat = NatType.nated(sessionResult.mappingPolicy.get(), sessionResult.allocationPolicy.get(),
               0, sessionResult.filterPolicy.get(), 10000);
           }
-          trigger(new StunNatDetected(eventIds.randomId(), nat, sessionResult.publicIp), stunPort);
+          trigger(new StunNatDetected(session.sessionId, nat, sessionResult.publicIp), stunPort);
           break;
         default:
           logger.error("{}unknown session result:{}", sessionResult.natState.get());
@@ -236,28 +463,96 @@ public class StunClientComp extends ComponentDefinition {
     @Override
     public void handle(StunEcho.Response content, KContentMsg<NatAwareAddress, ?, StunEcho.Response> container) {
       logger.trace("received:{}", new Object[]{container});
-      if (echoTId != null) {
-        timer.cancelTimer(echoTId);
-        echoTId = null;
+      PendingEcho pending = pendingEchoes.get(content.msgId);
+      if (pending == null || !pending.sessionId.equals(content.sessionId)) {
+        logger.debug("late or unknown echo:{}", content);
+        return;
       }
-      session.receivedResponse(content, container.getHeader().getSource());
-      if (!session.finished()) {
-        processSession(session);
-      } else {
-        processResult(session);
+      //any partner may answer a DIP_DP, but from another ip than the server we sent it to - or it tells us nothing
+      if (StunEcho.Type.DIP_DP.equals(content.type)
+        && container.getHeader().getSource().getIp().equals(pending.route.getValue1().getIp())) {
+        logger.debug("DIP_DP echo:{} answered from the stun server ip", content);
+        return;
       }
+      pendingEchoes.remove(content.msgId);
+      timer.cancelTimer(pending.tid);
+      //Karn - we cannot tell which copy of a retransmitted echo was answered
+      if (!pending.retransmitted && !StunEcho.Type.DIP_DP.equals(content.type)) {
+        rttEstimator.update(pending.answerSrc, System.currentTimeMillis() - pending.sentAt);
+      }
+      switch (pending.kind) {
+        case PROBE:
+          probeDone(pending);
+          return;
+        case CHECK:
+          checkDone(pending, content.observed);
+          return;
+      }
+      StunSession session = sessions.get(content.sessionId);
+      if (session == null) {
+        return;
+      }
+      session.receivedResponse(content, container.getHeader().getSource());
+      advanceSession(session);
     }
   };
 
+  private static enum EchoKind {
+
+    //one of the session tests
+    SESSION,
+    //server selection - rtt only
+    PROBE,
+    //StunEchoCheck
+    CHECK
+  }
+
+  private static class PendingEcho {
+
+    final Identifier sessionId;
+    final StunEcho.Request req;
+    //<self, stun server>
+    final Pair<NatAwareAddress, NatAwareAddress> route;
+    //stun server expected to answer - for DIP_DP the advertised partner, though any partner may answer
+    final Identifier answerSrc;
+    int retriesLeft;
+    boolean retransmitted = false;
+    EchoKind kind = EchoKind.SESSION;
+    long timeout;
+    UUID tid;
+    long sentAt;
+
+    PendingEcho(Identifier sessionId, StunEcho.Request req, Pair<NatAwareAddress, NatAwareAddress> route,
+      Identifier answerSrc, int retries) {
+      this.sessionId = sessionId;
+      this.req = req;
+      this.route = route;
+      this.answerSrc = answerSrc;
+      this.retriesLeft = retries;
+    }
+  }
+
   public static class Init extends se.sics.kompics.Init<StunClientComp> {
 
     public final Pair<NatAwareAddress, NatAwareAddress> selfAdr;
-    public final StunView stunView;
+    //first is the default, used when no candidate can be measured
+    public final List<StunView> stunViews;
+    //run an echo session on Start
+    public final boolean detectOnStart;
 
-    public Init(Pair<NatAwareAddress, NatAwareAddress> selfAdr,
-      StunView stunView) {
+    public Init(Pair<NatAwareAddress, NatAwareAddress> selfAdr, List<StunView> stunViews, boolean detectOnStart) {
+      assert !stunViews.isEmpty();
       this.selfAdr = selfAdr;
-      this.stunView = stunView;
+      this.stunViews = stunViews;
+      this.detectOnStart = detectOnStart;
+    }
+
+    public Init(Pair<NatAwareAddress, NatAwareAddress> selfAdr, List<StunView> stunViews) {
+      this(selfAdr, stunViews, true);
+    }
+
+    public Init(Pair<NatAwareAddress, NatAwareAddress> selfAdr, StunView stunView) {
+      this(selfAdr, new ArrayList<>(Arrays.asList(stunView)));
     }
   }
 }
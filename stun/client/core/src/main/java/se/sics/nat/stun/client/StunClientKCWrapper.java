@@ -33,10 +33,34 @@ public class StunClientKCWrapper {
   public final Pair<Integer, Integer> stunClientPorts;
   public final Optional<InetAddress> stunClientIp;
   public final Optional<Boolean> stunClientOpenPorts;
+  /**
+   * send independent echo probes of a session in parallel - default true
+   */
+  public final boolean pipelined;
   public final boolean hardBind = true;
-  public final long rtt = 2000;
   public final long CONFIG_TIMEOUT = 2000;
-  public final long ECHO_TIMEOUT = 2000;
+  /**
+   * echo timeouts are derived from measured rtts and kept within [rtoMin, rtoMax]. 
+   * rtoInit is used for stun servers we have no measurement for yet.
+   */
+  public final long rtoInit;
+  public final long rtoMin;
+  public final long rtoMax;
+  /**
+   * max candidate stun server pairs the client ranks
+   */
+  public final int selectMax;
+  /**
+   * ms a stun server that did not answer its probe is not probed again - and is the first to be evicted from the
+   * candidates
+   */
+  public final long selectUnreachableTtl;
+  /**
+   * retransmissions (same msgId, doubling timeout) before an echo counts as timed out. 
+   * filter retries apply to SIP_DP/DIP_DP, where silence is read as filtering.
+   */
+  public final int echoRetries;
+  public final int echoFilterRetries;
 
   public StunClientKCWrapper(Config configCore) {
     this.configCore = configCore;
@@ -44,5 +68,16 @@ public class StunClientKCWrapper {
       KConfigHelper.read(configCore, StunClientKConfig.stunClientPort2));
     stunClientIp = configCore.readValue(StunClientKConfig.stunClientIp.name, StunClientKConfig.stunClientIp.type);
     stunClientOpenPorts = configCore.readValue(StunClientKConfig.stunClientOpenPorts.name, StunClientKConfig.stunClientOpenPorts.type);
+    pipelined = configCore.readValue(StunClientKConfig.stunClientPipelined.name, StunClientKConfig.stunClientPipelined.type)
+      .or(true);
+    rtoInit = configCore.readValue(StunClientKConfig.rtoInit.name, StunClientKConfig.rtoInit.type).or(500l);
+    rtoMin = configCore.readValue(StunClientKConfig.rtoMin.name, StunClientKConfig.rtoMin.type).or(50l);
+    rtoMax = configCore.readValue(StunClientKConfig.rtoMax.name, StunClientKConfig.rtoMax.type).or(2000l);
+    selectMax = configCore.readValue(StunClientKConfig.selectMax.name, StunClientKConfig.selectMax.type).or(8);
+    selectUnreachableTtl = configCore.readValue(StunClientKConfig.selectUnreachableTtl.name,
+      StunClientKConfig.selectUnreachableTtl.type).or(5 * 60 * 1000l);
+    echoRetries = configCore.readValue(StunClientKConfig.echoRetries.name, StunClientKConfig.echoRetries.type).or(2);
+    echoFilterRetries = configCore.readValue(StunClientKConfig.echoFilterRetries.name,
+      StunClientKConfig.echoFilterRetries.type).or(3);
   }
 }
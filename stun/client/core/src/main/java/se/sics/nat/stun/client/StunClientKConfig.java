@@ -29,6 +29,14 @@ public class StunClientKConfig {
     public final static KConfigOption.Basic<Integer> stunClientPort2 = new KConfigOption.Basic("stun.client.address.port2", Integer.class);
     public final static InetAddressOption stunClientIp = new InetAddressOption("stun.client.address.ip");
     public final static KConfigOption.Basic<Boolean> stunClientOpenPorts = new KConfigOption.Basic("stun.client.openports", Boolean.class);
+    public final static KConfigOption.Basic<Boolean> stunClientPipelined = new KConfigOption.Basic("stun.client.pipelined", Boolean.class);
+    public final static KConfigOption.Basic<Long> rtoInit = new KConfigOption.Basic("stun.client.rto.init", Long.class);
+    public final static KConfigOption.Basic<Long> rtoMin = new KConfigOption.Basic("stun.client.rto.min", Long.class);
+    public final static KConfigOption.Basic<Long> rtoMax = new KConfigOption.Basic("stun.client.rto.max", Long.class);
+    public final static KConfigOption.Basic<Integer> selectMax = new KConfigOption.Basic("stun.client.select.max", Integer.class);
+    public final static KConfigOption.Basic<Long> selectUnreachableTtl = new KConfigOption.Basic("stun.client.select.unreachableTtl", Long.class);
+    public final static KConfigOption.Basic<Integer> echoRetries = new KConfigOption.Basic("stun.client.echo.retries", Integer.class);
+    public final static KConfigOption.Basic<Integer> echoFilterRetries = new KConfigOption.Basic("stun.client.echo.filter.retries", Integer.class);
     public final static KConfigOption.Basic<Integer> globalCroupier = new KConfigOption.Basic("services.globalCroupier", Integer.class);
     public final static KConfigOption.Basic<Integer> stunService = new KConfigOption.Basic("services.stun", Integer.class);
 }
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * NatTraverser is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.nat.stun.client.util;
+
+import com.google.common.base.Optional;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import se.sics.kompics.util.Identifier;
+import se.sics.ktoolbox.util.network.nat.NatAwareAddress;
+import se.sics.nat.stun.util.RTTEstimator;
+import se.sics.nat.stun.util.StunView;
+
+/**
+ * Candidate stun server pairs - from config and from the stun overlay. A pair
+ * is ranked by the smoothed rtt of both its servers, as measured by the echoes
+ * of the client, scaled up by the load the server advertises. Saturated
+ * servers (or servers without live partners) rank after all others. Pairs
+ * with servers we have not measured yet rank last and
+ * are reported by {@link #unmeasured()} so the client can probe them.
+ * Servers that did not answer a probe (and its retransmissions) are not
+ * probed again for unreachableTtl ms.
+ * <p>
+ * Configured views are kept first, so with no measurements at all the
+ * configured pair is picked.
+ *
+ * @author Alex Ormenisan <aaor@kth.se>
+ */
+public class StunServerSelector {
+
+  private final RTTEstimator rtts;
+  private final int maxCandidates;
+  //<stun server id, view>
+  private final Map<Identifier, StunView> candidates = new LinkedHashMap<>();
+  private final long unreachableTtl;
+  //<stun server id, unreachable until>
+  private final Map<Identifier, Long> unreachable = new HashMap<>();
+
+  public StunServerSelector(RTTEstimator rtts, int maxCandidates, long unreachableTtl) {
+    this.rtts = rtts;
+    this.maxCandidates = maxCandidates;
+    this.unreachableTtl = unreachableTtl;
+  }
+
+  public void addCandidate(StunView view) {
+    if (!view.hasPartner()) {
+      return;
+    }
+    Identifier serverId = view.selfStunAdr.getValue0().getId();
+    if (!candidates.containsKey(serverId) && candidates.size() >= maxCandidates) {
+      if (!evictUnreachable()) {
+        return;
+      }
+    }
+    candidates.put(serverId, view);
+  }
+
+  private boolean evictUnreachable() {
+    Iterator<StunView> it = candidates.values().iterator();
+    while (it.hasNext()) {
+      StunView view = it.next();
+      if (isUnreachable(view.selfStunAdr.getValue0().getId())
+        || isUnreachable(view.partnerStunAdr.get().getValue0().getId())) {
+        it.remove();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public int size() {
+    return candidates.size();
+  }
+
+  public void unreachable(Identifier serverId) {
+    long now = System.currentTimeMillis();
+    //servers that left the overlay are never looked up again
+    Iterator<Long> it = unreachable.values().iterator();
+    while (it.hasNext()) {
+      if (it.next() <= now) {
+        it.remove();
+      }
+    }
+    unreachable.put(serverId, now + unreachableTtl);
+  }
+
+  private boolean isUnreachable(Identifier serverId) {
+    Long until = unreachable.get(serverId);
+    if (until == null) {
+      return false;
+    }
+    if (until <= System.currentTimeMillis()) {
+      unreachable.remove(serverId);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return servers of candidate pairs without an rtt sample, that were not
+   * found unreachable within the last unreachableTtl ms
+   */
+  public List<NatAwareAddress> unmeasured() {
+    Map<Identifier, NatAwareAddress> result = new LinkedHashMap<>();
+    for (StunView view : candidates.values()) {
+      for (NatAwareAddress server : servers(view)) {
+        Identifier serverId = server.getId();
+        if (!rtts.srtt(serverId).isPresent() && !isUnreachable(serverId)) {
+          result.put(serverId, server);
+        }
+      }
+    }
+    return new ArrayList<>(result.values());
+  }
+
+  public Optional<StunView> best() {
+    StunView best = null;
+    boolean bestSaturated = true;
+    double bestScore = Double.MAX_VALUE;
+    for (StunView view : candidates.values()) {
+      boolean saturated = saturated(view);
+      double score = score(view);
+      if (best == null || (bestSaturated && !saturated) || (bestSaturated == saturated && score < bestScore)) {
+        best = view;
+        bestSaturated = saturated;
+        bestScore = score;
+      }
+    }
+    return Optional.fromNullable(best);
+  }
+
+  private boolean saturated(StunView view) {
+    if (!view.load.isPresent()) {
+      return false;
+    }
+    return view.load.get().partners == 0 || view.load.get().utilization() >= 1;
+  }
+
+  private double score(StunView view) {
+    double score = 0;
+    for (NatAwareAddress server : servers(view)) {
+      Optional<Long> srtt = rtts.srtt(server.getId());
+      if (!srtt.isPresent()) {
+        return Double.MAX_VALUE;
+      }
+      score += srtt.get();
+    }
+    if (view.load.isPresent()) {
+      score = score * (1 + view.load.get().utilization());
+    }
+    return score;
+  }
+
+  private NatAwareAddress[] servers(StunView view) {
+    return new NatAwareAddress[]{view.selfStunAdr.getValue0(), view.partnerStunAdr.get().getValue0()};
+  }
+}
@@ -21,19 +21,38 @@ package se.sics.nat.stun.client.util;
 import com.google.common.base.Optional;
 import java.net.InetAddress;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import org.javatuples.Pair;
 import se.sics.kompics.util.Identifier;
-import se.sics.ktoolbox.util.identifiable.BasicIdentifiers;
 import se.sics.ktoolbox.util.identifiable.IdentifierFactory;
-import se.sics.ktoolbox.util.identifiable.IdentifierRegistryV2;
 import se.sics.ktoolbox.util.network.nat.Nat;
 import se.sics.ktoolbox.util.network.nat.NatAwareAddress;
 import se.sics.nat.stun.event.StunEcho;
 
 /**
- * TODO Alex document the msgHandlers
+ * An echo session runs Test1, Test2, Test3 (filtering) and MA1..MA7 (mapping
+ * and allocation) against a pair of partnered stun servers. Test1 doubles as
+ * MA0.
+ * <p>
+ * In sequential mode one probe is in flight at a time, in the original order.
+ * In pipelined mode every probe whose outcome cannot be influenced by the
+ * others is sent as soon as possible:
+ * <ul>
+ * <li>Test1 and MA4..MA7 go out together - MA4..MA7 are sent from the second
+ * client port, so their bindings do not affect the filtering tests that run on
+ * the first port.</li>
+ * <li>Test2 and Test3 go out together once Test1 is answered - both are sent to
+ * the address Test1 already opened.</li>
+ * <li>MA1..MA3 go out once the filtering policy is known - they open bindings
+ * from the first port to the addresses Test2/Test3 are answered from.</li>
+ * </ul>
+ * The result is decided from the same observations in both modes. The NAT
+ * allocates ports in the order the probes leave, which differs between the
+ * modes, so port contiguity is judged on the new bindings in send order.
  * <p>
  * @author Alex Ormenisan <aaor@kth.se>
  */
@@ -43,41 +62,50 @@ public class StunSession {
   public final Identifier sessionId;
   public final Pair<NatAwareAddress, NatAwareAddress> self;
   public final Pair<Pair<NatAwareAddress, NatAwareAddress>, Pair<NatAwareAddress, NatAwareAddress>> stunServers;
+  public final boolean pipelined;
   //*****************************INTERNAL_STATE*******************************
-  public Phase phase;
-  private final MsgHandler[][] handlers = new MsgHandler[2][];
+  public State state;
+  private final Test1 test1 = new Test1();
+  private final Test2 test2 = new Test2();
+  private final Test3 test3 = new Test3();
+  private final MA[] ma = new MA[8];
+  //in sending order - Test1, Test2, Test3, MA1..MA7
+  private final List<MsgHandler> handlers = new ArrayList<>();
+  //<msgId, handler>
+  private final Map<Identifier, MsgHandler> pending = new HashMap<>();
   private final Pair<NatAwareAddress, NatAwareAddress>[] maTargets = new Pair[8];
+  //MA indexes (Test1 is MA0) in the order they were sent
+  private final List<Integer> maSendOrder = new ArrayList<>();
   private final NatAwareAddress[] echoResps;
   private final Result sessionResult;
   private final IdentifierFactory msgIds;
 
+  /**
+   * @param msgIds - shared by all sessions of a stun client so that msgIds are unique across sessions
+   * @param pipelined - send independent probes in parallel
+   */
   public StunSession(Identifier sessionId, Pair<NatAwareAddress, NatAwareAddress> self,
-    Pair<Pair<NatAwareAddress, NatAwareAddress>, Pair<NatAwareAddress, NatAwareAddress>> stunServers) {
+    Pair<Pair<NatAwareAddress, NatAwareAddress>, Pair<NatAwareAddress, NatAwareAddress>> stunServers,
+    IdentifierFactory msgIds, boolean pipelined) {
     this.sessionId = sessionId;
     this.self = self;
     this.stunServers = stunServers;
-    this.phase = new Phase();
+    this.pipelined = pipelined;
+    this.state = State.TEST;
     this.echoResps = new NatAwareAddress[8];
     this.sessionResult = new Result();
+    this.msgIds = msgIds;
     setHandlers();
-    this.msgIds = IdentifierRegistryV2.instance(BasicIdentifiers.Values.MSG, java.util.Optional.of(1234l));
-
   }
 
   private void setHandlers() {
-    handlers[State.TEST.index] = new MsgHandler[3];
-    handlers[State.TEST.index][0] = new Test1();
-    handlers[State.TEST.index][1] = new Test2();
-    handlers[State.TEST.index][2] = new Test3();
-    handlers[State.MA.index] = new MsgHandler[8];
-    handlers[State.MA.index][0] = new MA();
-    handlers[State.MA.index][1] = new MA();
-    handlers[State.MA.index][2] = new MA();
-    handlers[State.MA.index][3] = new MA();
-    handlers[State.MA.index][4] = new MA();
-    handlers[State.MA.index][5] = new MA();
-    handlers[State.MA.index][6] = new MA();
-    handlers[State.MA.index][7] = new MA();
+    handlers.add(test1);
+    handlers.add(test2);
+    handlers.add(test3);
+    for (int i = 1; i < 8; i++) {
+      ma[i] = new MA(i);
+      handlers.add(ma[i]);
+    }
 
     maTargets[0] = Pair.with(self.getValue0(), stunServers.getValue0().getValue0());
     maTargets[1] = Pair.with(self.getValue0(), stunServers.getValue0().getValue1());
@@ -90,23 +118,140 @@ public class StunSession {
   }
 
   public boolean finished() {
-    return phase.state.equals(State.SUCCESS) || phase.state.equals(State.FAIL);
+    return state.equals(State.SUCCESS) || state.equals(State.FAIL);
   }
 
   public Result getResult() {
     return sessionResult;
   }
 
-  public Pair<StunEcho.Request, Pair<NatAwareAddress, NatAwareAddress>> next() {
-    return handlers[phase.state.index][phase.subPhase].next();
+  /**
+   * @return the requests that can be sent now - empty if the session waits on
+   * requests in flight
+   */
+  public List<Pair<StunEcho.Request, Pair<NatAwareAddress, NatAwareAddress>>> next() {
+    List<Pair<StunEcho.Request, Pair<NatAwareAddress, NatAwareAddress>>> next = new ArrayList<>();
+    if (finished()) {
+      return next;
+    }
+    for (MsgHandler handler : handlers) {
+      if (!pipelined && !(pending.isEmpty() && next.isEmpty())) {
+        break;
+      }
+      if (handler.probe.equals(Probe.WAITING) && handler.ready()) {
+        Pair<StunEcho.Request, Pair<NatAwareAddress, NatAwareAddress>> req = handler.next();
+        handler.probe = Probe.SENT;
+        if (handler == test1) {
+          maSendOrder.add(0);
+        } else if (handler instanceof MA) {
+          maSendOrder.add(((MA) handler).index);
+        }
+        pending.put(req.getValue0().msgId, handler);
+        next.add(req);
+      }
+    }
+    return next;
+  }
+
+  /**
+   * @return msgIds of requests still waiting for a response
+   */
+  public Set<Identifier> pendingMsgs() {
+    return pending.keySet();
   }
 
   public void receivedResponse(StunEcho.Response resp, NatAwareAddress src) {
-    handlers[phase.state.index][phase.subPhase].receive(resp, src);
+    MsgHandler handler = pending.remove(resp.msgId);
+    if (handler == null) {
+      return;
+    }
+    handler.probe = Probe.RECEIVED;
+    handler.receive(resp, src);
+    decide();
   }
 
-  public void timeout() {
-    handlers[phase.state.index][phase.subPhase].timeout();
+  public void timeout(Identifier msgId) {
+    MsgHandler handler = pending.remove(msgId);
+    if (handler == null) {
+      return;
+    }
+    handler.probe = Probe.TIMEOUT;
+    decide();
+  }
+
+  private boolean openIp() {
+    return self.getValue0().getIp().equals(echoResps[0].getIp());
+  }
+
+  private boolean filterKnown() {
+    return sessionResult.filterPolicy.isPresent();
+  }
+
+  /**
+   * decisions are taken in test order, independent of the order in which
+   * responses and timeouts arrived
+   */
+  private void decide() {
+    if (finished()) {
+      return;
+    }
+    switch (test1.probe) {
+      case RECEIVED:
+        break;
+      case TIMEOUT:
+        sessionResult.setNatState(NatState.UDP_BLOCKED);
+        state = State.SUCCESS;
+        sessionResult.success();
+        return;
+      default:
+        return;
+    }
+    if (!filterKnown()) {
+      if (test2.probe.equals(Probe.RECEIVED)) {
+        if (openIp()) {
+          sessionResult.setNatState(NatState.OPEN);
+          state = State.SUCCESS;
+          sessionResult.success();
+          return;
+        }
+        sessionResult.setNatState(NatState.NAT);
+        sessionResult.setFilterPolicy(Nat.FilteringPolicy.ENDPOINT_INDEPENDENT);
+      } else if (test2.probe.equals(Probe.TIMEOUT)) {
+        if (openIp()) {
+          sessionResult.setNatState(NatState.FIREWALL);
+          state = State.SUCCESS;
+          sessionResult.success();
+          return;
+        }
+        if (test3.probe.equals(Probe.RECEIVED)) {
+          sessionResult.setNatState(NatState.NAT);
+          sessionResult.setFilterPolicy(Nat.FilteringPolicy.HOST_DEPENDENT);
+        } else if (test3.probe.equals(Probe.TIMEOUT)) {
+          sessionResult.setNatState(NatState.NAT);
+          sessionResult.setFilterPolicy(Nat.FilteringPolicy.PORT_DEPENDENT);
+        } else {
+          return;
+        }
+      } else {
+        return;
+      }
+      state = State.MA;
+    }
+    boolean maDone = true;
+    for (int i = 1; i < 8; i++) {
+      if (ma[i].probe.equals(Probe.TIMEOUT)) {
+        state = State.FAIL;
+        sessionResult.fail("mapping allocation timeout");
+        return;
+      }
+      maDone = maDone && ma[i].probe.equals(Probe.RECEIVED);
+    }
+    if (maDone) {
+      state = State.SUCCESS;
+      determineMappingPolicy();
+      determineAllocationPolicy();
+      sessionResult.success();
+    }
   }
 
   private void determineMappingPolicy() {
@@ -137,30 +282,17 @@ public class StunSession {
       || self.getValue1().getPort() == echoResps[4].getPort()) {
       sessionResult.setAllocationPolicy(Nat.AllocationPolicy.PORT_PRESERVATION);
     } else {
+      //consecutive new bindings, in the order the nat saw them
       List<Pair<NatAwareAddress, NatAwareAddress>> list = new ArrayList<>();
-      switch (sessionResult.mappingPolicy.get()) {
-        case ENDPOINT_INDEPENDENT: {
-          list.add(Pair.with(echoResps[0], echoResps[4]));
-        }
-        break;
-        case HOST_DEPENDENT: {
-          list.add(Pair.with(echoResps[0], echoResps[3]));
-          list.add(Pair.with(echoResps[3], echoResps[5]));
-          list.add(Pair.with(echoResps[5], echoResps[7]));
+      NatAwareAddress previous = null;
+      for (int i : maSendOrder) {
+        if (!newBinding(i)) {
+          continue;
         }
-        break;
-        case PORT_DEPENDENT: {
-          list.add(Pair.with(echoResps[0], echoResps[1]));
-          list.add(Pair.with(echoResps[1], echoResps[2]));
-          list.add(Pair.with(echoResps[2], echoResps[3]));
-          list.add(Pair.with(echoResps[3], echoResps[4]));
-          list.add(Pair.with(echoResps[4], echoResps[5]));
-          list.add(Pair.with(echoResps[5], echoResps[6]));
-          list.add(Pair.with(echoResps[6], echoResps[7]));
+        if (previous != null) {
+          list.add(Pair.with(previous, echoResps[i]));
         }
-        break;
-        default:
-          assert false;
+        previous = echoResps[i];
       }
       int ret = checkContiguity(list);
       if (ret == -1) {
@@ -172,6 +304,28 @@ public class StunSession {
     }
   }
 
+  /**
+   * @return true if MA index is the first - in both modes - to use its
+   * binding, given the mapping policy - MA0..MA3 are sent from the first client
+   * port, MA4..MA7 from the second, each to server1 port1, server1 port2,
+   * server2 port1, server2 port2
+   */
+  private boolean newBinding(int index) {
+    switch (sessionResult.mappingPolicy.get()) {
+      case ENDPOINT_INDEPENDENT:
+        //one binding per client port
+        return index % 4 == 0;
+      case HOST_DEPENDENT:
+        //one binding per client port and server
+        return index % 2 == 0;
+      case PORT_DEPENDENT:
+        return true;
+      default:
+        assert false;
+        return false;
+    }
+  }
+
   /**
    * return -1 if the port allocation policy is random return / positive
    * number that is the delta i.e. port increment number
@@ -198,16 +352,34 @@ public class StunSession {
     return minDelta;
   }
 
-  public static interface MsgHandler {
+  public static enum Probe {
+
+    WAITING,
+    SENT,
+    RECEIVED,
+    TIMEOUT
+  }
 
-    public Pair<StunEcho.Request, Pair<NatAwareAddress, NatAwareAddress>> next();
+  public abstract class MsgHandler {
 
-    public void receive(StunEcho.Response resp, NatAwareAddress src);
+    Probe probe = Probe.WAITING;
 
-    public void timeout();
+    /**
+     * @return true if the request can be sent given the outcome of the other probes
+     */
+    public abstract boolean ready();
+
+    public abstract Pair<StunEcho.Request, Pair<NatAwareAddress, NatAwareAddress>> next();
+
+    public abstract void receive(StunEcho.Response resp, NatAwareAddress src);
   }
 
-  public class Test1 implements MsgHandler {
+  public class Test1 extends MsgHandler {
+
+    @Override
+    public boolean ready() {
+      return true;
+    }
 
     @Override
     public Pair<StunEcho.Request, Pair<NatAwareAddress, NatAwareAddress>> next() {
@@ -219,18 +391,15 @@ public class StunSession {
     public void receive(StunEcho.Response resp, NatAwareAddress src) {
       sessionResult.setPublicIp(resp.observed.get().getIp());
       echoResps[0] = resp.observed.get(); //we use test1 msg as MA0
-      phase.setState(State.TEST, 1);
     }
+  }
+
+  public class Test2 extends MsgHandler {
 
     @Override
-    public void timeout() {
-      sessionResult.setNatState(NatState.UDP_BLOCKED);
-      phase.setState(State.SUCCESS, 0);
-      sessionResult.success();
+    public boolean ready() {
+      return test1.probe.equals(Probe.RECEIVED);
     }
-  }
-
-  public class Test2 implements MsgHandler {
 
     @Override
     public Pair<StunEcho.Request, Pair<NatAwareAddress, NatAwareAddress>> next() {
@@ -241,30 +410,18 @@ public class StunSession {
 
     @Override
     public void receive(StunEcho.Response resp, NatAwareAddress src) {
-      if (self.getValue0().getIp().equals(echoResps[0].getIp())) {
-        sessionResult.setNatState(NatState.OPEN);
-        phase.setState(State.SUCCESS, 0);
-        sessionResult.success();
-      } else {
-        sessionResult.setNatState(NatState.NAT);
-        sessionResult.setFilterPolicy(Nat.FilteringPolicy.ENDPOINT_INDEPENDENT);
-        phase.setState(State.MA, 0);
-      }
     }
+  }
+
+  public class Test3 extends MsgHandler {
 
     @Override
-    public void timeout() {
-      if (self.getValue0().getIp().equals(echoResps[0].getIp())) {
-        sessionResult.setNatState(NatState.FIREWALL);
-        phase.setState(State.SUCCESS, 0);
-        sessionResult.success();
-      } else {
-        phase.setState(State.TEST, 2);
+    public boolean ready() {
+      if (!test1.probe.equals(Probe.RECEIVED) || openIp()) {
+        return false;
       }
+      return pipelined || test2.probe.equals(Probe.TIMEOUT);
     }
-  }
-
-  public class Test3 implements MsgHandler {
 
     @Override
     public Pair<StunEcho.Request, Pair<NatAwareAddress, NatAwareAddress>> next() {
@@ -274,74 +431,44 @@ public class StunSession {
 
     @Override
     public void receive(StunEcho.Response resp, NatAwareAddress src) {
-      sessionResult.setNatState(NatState.NAT);
-      sessionResult.setFilterPolicy(Nat.FilteringPolicy.HOST_DEPENDENT);
-      phase.setState(State.MA, 0);
     }
-
-    @Override
-    public void timeout() {
-      sessionResult.setNatState(NatState.NAT);
-      sessionResult.setFilterPolicy(Nat.FilteringPolicy.PORT_DEPENDENT);
-      phase.setState(State.MA, 0);
-    }
-
   }
 
-  public class MA implements MsgHandler {
+  public class MA extends MsgHandler {
 
-    @Override
-    public Pair<StunEcho.Request, Pair<NatAwareAddress, NatAwareAddress>> next() {
-      return Pair.with(new StunEcho.Request(msgIds.randomId(), sessionId, StunEcho.Type.SIP_SP, null), maTargets[phase.subPhase]);
+    private final int index;
+
+    MA(int index) {
+      this.index = index;
     }
 
     @Override
-    public void receive(StunEcho.Response resp, NatAwareAddress src) {
-      echoResps[phase.subPhase] = resp.observed.get();
-      if (phase.subPhase == 7) {
-        phase.setState(State.SUCCESS, 0);
-        determineMappingPolicy();
-        determineAllocationPolicy();
-        sessionResult.success();
-      } else {
-        phase.setState(State.MA, phase.subPhase + 1);
+    public boolean ready() {
+      //second port probes do not interfere with the filtering tests
+      if (pipelined && index >= 4) {
+        return true;
       }
+      return filterKnown();
     }
 
     @Override
-    public void timeout() {
-      phase.setState(State.FAIL, 0);
-      sessionResult.fail("mapping allocation timeout");
+    public Pair<StunEcho.Request, Pair<NatAwareAddress, NatAwareAddress>> next() {
+      return Pair.with(new StunEcho.Request(msgIds.randomId(), sessionId, StunEcho.Type.SIP_SP, null),
+        maTargets[index]);
     }
-  }
-
-  public static enum State {
 
-    TEST(0),
-    MA(1),
-    SUCCESS(2),
-    FAIL(3);
-    final int index;
-
-    State(int index) {
-      this.index = index;
+    @Override
+    public void receive(StunEcho.Response resp, NatAwareAddress src) {
+      echoResps[index] = resp.observed.get();
     }
   }
 
-  public class Phase {
-
-    public State state;
-    public int subPhase;
-
-    Phase() {
-      state = State.TEST;
-      subPhase = 0;
-    }
+  public static enum State {
 
-    public void setState(State state, int subPhase) {
-      this.state = state;
-      this.subPhase = subPhase;
-    }
+    TEST,
+    MA,
+    SUCCESS,
+    FAIL
   }
 
   public static enum NatState {
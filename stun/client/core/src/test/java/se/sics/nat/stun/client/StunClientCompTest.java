@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * NatTraverser is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.nat.stun.client;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.javatuples.Pair;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import se.sics.kompics.Channel;
+import se.sics.kompics.Component;
+import se.sics.kompics.ComponentDefinition;
+import se.sics.kompics.Handler;
+import se.sics.kompics.Init;
+import se.sics.kompics.Kompics;
+import se.sics.kompics.Negative;
+import se.sics.kompics.Positive;
+import se.sics.kompics.Start;
+import se.sics.kompics.network.Msg;
+import se.sics.kompics.network.Network;
+import se.sics.kompics.timer.ScheduleTimeout;
+import se.sics.kompics.timer.Timer;
+import se.sics.ktoolbox.util.identifiable.BasicBuilders;
+import se.sics.ktoolbox.util.identifiable.BasicIdentifiers;
+import se.sics.ktoolbox.util.identifiable.IdentifierFactory;
+import se.sics.ktoolbox.util.identifiable.IdentifierRegistryV2;
+import se.sics.ktoolbox.util.network.KContentMsg;
+import se.sics.ktoolbox.util.network.basic.BasicAddress;
+import se.sics.ktoolbox.util.network.nat.NatAwareAddress;
+import se.sics.ktoolbox.util.network.nat.NatAwareAddressImpl;
+import se.sics.nat.stun.StunClientPort;
+import se.sics.nat.stun.StunEchoCheck;
+import se.sics.nat.stun.StunEchoChecked;
+import se.sics.nat.stun.event.StunEcho;
+import se.sics.nat.stun.util.StunView;
+
+/**
+ * Runs a StunClientComp against a network that drops everything and a timer
+ * that fires every timeout right away.
+ *
+ * @author Alex Ormenisan <aaor@kth.se>
+ */
+public class StunClientCompTest {
+
+  private static IdentifierFactory nodeIdFactory;
+  private static IdentifierFactory eventIds;
+  private static Pair<NatAwareAddress, NatAwareAddress> selfAdr;
+  private static StunView stunView;
+  private static final BlockingQueue<StunEchoChecked> checked = new LinkedBlockingQueue<>();
+  private static final BlockingQueue<StunEcho.Request> dropped = new LinkedBlockingQueue<>();
+
+  @BeforeClass
+  public static void setup() throws UnknownHostException {
+    IdentifierRegistryV2.registerBaseDefaults1(64);
+    nodeIdFactory = IdentifierRegistryV2.instance(BasicIdentifiers.Values.NODE, java.util.Optional.of(1234l));
+    eventIds = IdentifierRegistryV2.instance(BasicIdentifiers.Values.EVENT, java.util.Optional.of(1234l));
+
+    InetAddress localHost = InetAddress.getLocalHost();
+    selfAdr = Pair.with(
+      address(localHost, 31000, 1),
+      address(localHost, 31001, 1));
+    stunView = StunView.empty(Pair.with(
+      address(localHost, 30000, 2),
+      address(localHost, 30001, 2)));
+  }
+
+  private static NatAwareAddress address(InetAddress ip, int port, int id) {
+    return NatAwareAddressImpl.open(new BasicAddress(ip, port, nodeIdFactory.id(new BasicBuilders.IntBuilder(id))));
+  }
+
+  @Test
+  public void testCheckTimeout() throws InterruptedException {
+    Kompics.createAndStart(TestHost.class, 1);
+    try {
+      StunEchoChecked event = checked.poll(5, TimeUnit.SECONDS);
+      Assert.assertNotNull(event);
+      Assert.assertFalse(event.observed.isPresent());
+
+      //first send and stun.client.echo.retries retransmissions of the same echo
+      StunEcho.Request first = dropped.poll(1, TimeUnit.SECONDS);
+      Assert.assertNotNull(first);
+      for (int i = 0; i < 2; i++) {
+        StunEcho.Request retransmission = dropped.poll(1, TimeUnit.SECONDS);
+        Assert.assertNotNull(retransmission);
+        Assert.assertEquals(first.msgId, retransmission.msgId);
+      }
+      Assert.assertNull(dropped.poll(100, TimeUnit.MILLISECONDS));
+    } finally {
+      Kompics.shutdown();
+    }
+  }
+
+  public static class TestHost extends ComponentDefinition {
+
+    private final Positive<StunClientPort> stunPort = requires(StunClientPort.class);
+
+    public TestHost() {
+      Component timer = create(InstantTimer.class, Init.NONE);
+      Component network = create(DropNetwork.class, Init.NONE);
+      Component stunClient = create(StunClientComp.class,
+        new StunClientComp.Init(selfAdr, new ArrayList<>(Arrays.asList(stunView)), false));
+      connect(stunClient.getNegative(Timer.class), timer.getPositive(Timer.class), Channel.TWO_WAY);
+      connect(stunClient.getNegative(Network.class), network.getPositive(Network.class), Channel.TWO_WAY);
+      connect(stunClient.getPositive(StunClientPort.class), stunPort.getPair(), Channel.TWO_WAY);
+      subscribe(handleStart, control);
+      subscribe(handleChecked, stunPort);
+    }
+
+    Handler handleStart = new Handler<Start>() {
+      @Override
+      public void handle(Start event) {
+        trigger(new StunEchoCheck(eventIds.randomId()), stunPort);
+      }
+    };
+
+    Handler handleChecked = new Handler<StunEchoChecked>() {
+      @Override
+      public void handle(StunEchoChecked event) {
+        checked.offer(event);
+      }
+    };
+  }
+
+  public static class InstantTimer extends ComponentDefinition {
+
+    private final Negative<Timer> timerPort = provides(Timer.class);
+
+    public InstantTimer() {
+      subscribe(handleSchedule, timerPort);
+    }
+
+    Handler handleSchedule = new Handler<ScheduleTimeout>() {
+      @Override
+      public void handle(ScheduleTimeout req) {
+        trigger(req.getTimeoutEvent(), timerPort);
+      }
+    };
+  }
+
+  public static class DropNetwork extends ComponentDefinition {
+
+    private final Negative<Network> networkPort = provides(Network.class);
+
+    public DropNetwork() {
+      subscribe(handleMsg, networkPort);
+    }
+
+    Handler handleMsg = new Handler<Msg>() {
+      @Override
+      public void handle(Msg msg) {
+        if (msg instanceof KContentMsg && ((KContentMsg) msg).getContent() instanceof StunEcho.Request) {
+          dropped.offer((StunEcho.Request) ((KContentMsg) msg).getContent());
+        }
+      }
+    };
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * NatTraverser is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.nat.stun.client.util;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.javatuples.Pair;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import se.sics.ktoolbox.util.identifiable.BasicBuilders;
+import se.sics.ktoolbox.util.identifiable.BasicIdentifiers;
+import se.sics.ktoolbox.util.identifiable.IdentifierFactory;
+import se.sics.ktoolbox.util.identifiable.IdentifierRegistryV2;
+import se.sics.ktoolbox.util.network.basic.BasicAddress;
+import se.sics.ktoolbox.util.network.nat.Nat;
+import se.sics.ktoolbox.util.network.nat.NatAwareAddress;
+import se.sics.ktoolbox.util.network.nat.NatAwareAddressImpl;
+import se.sics.nat.stun.event.StunEcho;
+
+/**
+ * Runs sequential and pipelined sessions against a simulated port dependent
+ * nat that allocates contiguous ports in the order the probes leave.
+ *
+ * @author Alex Ormenisan <aaor@kth.se>
+ */
+public class StunSessionTest {
+
+  private static final int NAT_FIRST_PORT = 40000;
+  private static final int NAT_DELTA = 10;
+
+  private static IdentifierFactory nodeIdFactory;
+  private static IdentifierFactory eventIds;
+  private static InetAddress publicIp;
+  private static Pair<NatAwareAddress, NatAwareAddress> self;
+  private static Pair<Pair<NatAwareAddress, NatAwareAddress>, Pair<NatAwareAddress, NatAwareAddress>> stunServers;
+
+  @BeforeClass
+  public static void setup() throws UnknownHostException {
+    IdentifierRegistryV2.registerBaseDefaults1(64);
+    nodeIdFactory = IdentifierRegistryV2.instance(BasicIdentifiers.Values.NODE, java.util.Optional.of(1234l));
+    eventIds = IdentifierRegistryV2.instance(BasicIdentifiers.Values.EVENT, java.util.Optional.of(1234l));
+
+    publicIp = InetAddress.getByName("193.10.64.1");
+    InetAddress privateIp = InetAddress.getByName("10.0.0.1");
+    InetAddress server1Ip = InetAddress.getByName("193.10.67.1");
+    InetAddress server2Ip = InetAddress.getByName("193.10.67.2");
+    self = Pair.with(address(privateIp, 5000, 1), address(privateIp, 5001, 1));
+    stunServers = Pair.with(
+      Pair.with(address(server1Ip, 30000, 2), address(server1Ip, 30001, 2)),
+      Pair.with(address(server2Ip, 30000, 3), address(server2Ip, 30001, 3)));
+  }
+
+  private static NatAwareAddress address(InetAddress ip, int port, int id) {
+    return NatAwareAddressImpl.open(new BasicAddress(ip, port, nodeIdFactory.id(new BasicBuilders.IntBuilder(id))));
+  }
+
+  @Test
+  public void testContiguousSequential() {
+    assertContiguous(runSession(false));
+  }
+
+  @Test
+  public void testContiguousPipelined() {
+    assertContiguous(runSession(true));
+  }
+
+  private void assertContiguous(StunSession.Result result) {
+    Assert.assertEquals(StunSession.NatState.NAT, result.natState.get());
+    Assert.assertEquals(Nat.FilteringPolicy.ENDPOINT_INDEPENDENT, result.filterPolicy.get());
+    Assert.assertEquals(Nat.MappingPolicy.PORT_DEPENDENT, result.mappingPolicy.get());
+    Assert.assertEquals(Nat.AllocationPolicy.PORT_CONTIGUITY, result.allocationPolicy.get());
+    Assert.assertEquals(NAT_DELTA, (int) result.delta.get());
+  }
+
+  /**
+   * Requests are mapped when they are sent and answered once the whole batch
+   * is out, as they would be with the batch in flight.
+   */
+  private StunSession.Result runSession(boolean pipelined) {
+    StunSession session = new StunSession(eventIds.randomId(), self, stunServers, eventIds, pipelined);
+    ContiguousNat nat = new ContiguousNat();
+    while (!session.finished()) {
+      List<Pair<StunEcho.Request, Pair<NatAwareAddress, NatAwareAddress>>> batch = session.next();
+      Assert.assertFalse("session stuck", batch.isEmpty());
+      List<Pair<StunEcho.Response, NatAwareAddress>> responses = new ArrayList<>();
+      for (Pair<StunEcho.Request, Pair<NatAwareAddress, NatAwareAddress>> next : batch) {
+        StunEcho.Request req = next.getValue0();
+        NatAwareAddress observed = nat.map(next.getValue1());
+        NatAwareAddress server = next.getValue1().getValue1();
+        switch (req.type) {
+          case SIP_SP:
+            responses.add(Pair.with(req.answer(observed), server));
+            break;
+          case SIP_DP:
+            responses.add(Pair.with(req.answer(observed), stunServers.getValue0().getValue1()));
+            break;
+          case DIP_DP:
+            responses.add(Pair.with(req.answer(), stunServers.getValue1().getValue1()));
+            break;
+          default:
+            Assert.fail("unexpected echo type:" + req.type);
+        }
+      }
+      for (Pair<StunEcho.Response, NatAwareAddress> response : responses) {
+        session.receivedResponse(response.getValue0(), response.getValue1());
+      }
+    }
+    return session.getResult();
+  }
+
+  /**
+   * Port dependent mapping, endpoint independent filtering, every new binding
+   * gets the next port at NAT_DELTA from the previous one.
+   */
+  private static class ContiguousNat {
+
+    private final Map<String, Integer> bindings = new HashMap<>();
+    private int nextPort = NAT_FIRST_PORT;
+
+    NatAwareAddress map(Pair<NatAwareAddress, NatAwareAddress> route) {
+      NatAwareAddress src = route.getValue0();
+      NatAwareAddress dst = route.getValue1();
+      String key = src.getPort() + "-" + dst.getIp().getHostAddress() + ":" + dst.getPort();
+      Integer port = bindings.get(key);
+      if (port == null) {
+        port = nextPort;
+        nextPort += NAT_DELTA;
+        bindings.put(key, port);
+      }
+      return NatAwareAddressImpl.open(new BasicAddress(publicIp, port, src.getId()));
+    }
+  }
+}
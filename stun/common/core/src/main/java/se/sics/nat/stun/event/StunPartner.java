@@ -80,4 +80,50 @@ public class StunPartner {
       return "StunPartnerResponse<" + msgId + ">";
     }
   }
+
+  /**
+   * Heartbeat between partners - a partner that misses too many pongs is
+   * dropped.
+   */
+  public static class Ping implements StunEvent {
+
+    public final Identifier msgId;
+
+    public Ping(Identifier msgId) {
+      this.msgId = msgId;
+    }
+
+    public Pong pong() {
+      return new Pong(msgId);
+    }
+
+    @Override
+    public Identifier getId() {
+      return msgId;
+    }
+
+    @Override
+    public String toString() {
+      return "StunPartnerPing<" + msgId + ">";
+    }
+  }
+
+  public static class Pong implements StunEvent {
+
+    public final Identifier msgId;
+
+    Pong(Identifier msgId) {
+      this.msgId = msgId;
+    }
+
+    @Override
+    public Identifier getId() {
+      return msgId;
+    }
+
+    @Override
+    public String toString() {
+      return "StunPartnerPong<" + msgId + ">";
+    }
+  }
 }
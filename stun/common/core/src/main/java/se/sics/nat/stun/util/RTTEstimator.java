@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * NatTraverser is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.nat.stun.util;
+
+import com.google.common.base.Optional;
+import java.util.HashMap;
+import java.util.Map;
+import se.sics.kompics.util.Identifier;
+
+/**
+ * Per destination round trip estimator in the style of RFC 6298 (SRTT/RTTVAR).
+ * Timeouts are bounded by [rtoMin, rtoMax]. Destinations without samples
+ * borrow the most conservative estimate we have, or rtoInit if we have none.
+ *
+ * @author Alex Ormenisan <aaor@kth.se>
+ */
+public class RTTEstimator {
+
+    private static final double ALPHA = 0.125;
+    private static final double BETA = 0.25;
+    private static final int K = 4;
+    private static final long G = 1;
+
+    private final long rtoInit;
+    private final long rtoMin;
+    private final long rtoMax;
+    private final Map<Identifier, Estimate> estimates = new HashMap<>();
+
+    public RTTEstimator(long rtoInit, long rtoMin, long rtoMax) {
+        assert rtoMin <= rtoInit && rtoInit <= rtoMax;
+        this.rtoInit = rtoInit;
+        this.rtoMin = rtoMin;
+        this.rtoMax = rtoMax;
+    }
+
+    public void update(Identifier dst, long rtt) {
+        Estimate e = estimates.get(dst);
+        if (e == null) {
+            e = new Estimate(rtt);
+            estimates.put(dst, e);
+        } else {
+            e.update(rtt);
+        }
+    }
+
+    public long rto(Identifier dst) {
+        Estimate e = estimates.get(dst);
+        if (e != null) {
+            return e.rto;
+        }
+        long rto = 0;
+        for (Estimate other : estimates.values()) {
+            rto = Math.max(rto, other.rto);
+        }
+        return rto == 0 ? rtoInit : rto;
+    }
+
+    public Optional<Long> srtt(Identifier dst) {
+        Estimate e = estimates.get(dst);
+        if (e == null) {
+            return Optional.absent();
+        }
+        return Optional.of((long) e.srtt);
+    }
+
+    public long maxRto() {
+        return rtoMax;
+    }
+
+    private class Estimate {
+
+        double srtt;
+        double rttvar;
+        long rto;
+
+        Estimate(long rtt) {
+            srtt = rtt;
+            rttvar = rtt / 2.0;
+            setRto();
+        }
+
+        void update(long rtt) {
+            rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+            srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+            setRto();
+        }
+
+        private void setRto() {
+            long val = (long) Math.ceil(srtt + Math.max(G, K * rttvar));
+            rto = Math.min(rtoMax, Math.max(rtoMin, val));
+        }
+    }
+}
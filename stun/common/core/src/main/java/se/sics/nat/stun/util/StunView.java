@@ -29,21 +29,36 @@ import se.sics.ktoolbox.util.update.View;
 public class StunView implements View {
     public final Pair<NatAwareAddress, NatAwareAddress> selfStunAdr;
     public final Optional<Pair<NatAwareAddress, NatAwareAddress>> partnerStunAdr;
+    /**
+     * advertised by the server itself - absent in views from config or from older servers
+     */
+    public final Optional<Load> load;
     
     public StunView(Pair<NatAwareAddress, NatAwareAddress> selfStunAdr, 
-            Optional<Pair<NatAwareAddress, NatAwareAddress>> partnerStunAdr) {
+            Optional<Pair<NatAwareAddress, NatAwareAddress>> partnerStunAdr, Optional<Load> load) {
         this.selfStunAdr = selfStunAdr;
         this.partnerStunAdr = partnerStunAdr;
+        this.load = load;
+    }
+    
+    public StunView(Pair<NatAwareAddress, NatAwareAddress> selfStunAdr, 
+            Optional<Pair<NatAwareAddress, NatAwareAddress>> partnerStunAdr) {
+        this(selfStunAdr, partnerStunAdr, Optional.<Load>absent());
     }
     
     public boolean hasPartner() {
         return partnerStunAdr.isPresent();
     }
     
+    public StunView withLoad(Load load) {
+        return new StunView(selfStunAdr, partnerStunAdr, Optional.of(load));
+    }
+    
     @Override
     public String toString() {
         String toS = "selfStun:" + doubleAddressToString(selfStunAdr)
-                + "partner:" + (partnerStunAdr.isPresent() ? doubleAddressToString(partnerStunAdr.get()) : "x");
+                + "partner:" + (partnerStunAdr.isPresent() ? doubleAddressToString(partnerStunAdr.get()) : "x")
+                + (load.isPresent() ? " " + load.get() : "");
         return toS;
     }
     
@@ -63,4 +78,37 @@ public class StunView implements View {
             Pair<NatAwareAddress, NatAwareAddress> partnerStunAdr) {
         return new StunView(selfStunAdr, Optional.of(partnerStunAdr));
     }
+    
+    /**
+     * Compact server health summary.
+     */
+    public static class Load {
+        //echoes per second answered recently
+        public final int echoRate;
+        //live partners - 0 means DIP_DP tests through this server fail
+        public final int partners;
+        //echoes per second the server is willing to answer
+        public final int capacity;
+        
+        public Load(int echoRate, int partners, int capacity) {
+            this.echoRate = echoRate;
+            this.partners = partners;
+            this.capacity = capacity;
+        }
+        
+        /**
+         * @return echoRate/capacity - 1 or more means saturated
+         */
+        public double utilization() {
+            if (capacity <= 0) {
+                return 1;
+            }
+            return (double) echoRate / capacity;
+        }
+        
+        @Override
+        public String toString() {
+            return "load:" + echoRate + "/" + capacity + " partners:" + partners;
+        }
+    }
 }
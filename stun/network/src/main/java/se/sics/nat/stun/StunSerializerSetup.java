@@ -32,7 +32,7 @@ import se.sics.nat.stun.util.StunView;
  * @author Alex Ormenisan <aaor@kth.se>
  */
 public class StunSerializerSetup {
-    public static int serializerIds = 6;
+    public static int serializerIds = 8;
     
     public static enum StunSerializers {
         StunView(StunView.class, "stunViewSerializer"),
@@ -40,7 +40,9 @@ public class StunSerializerSetup {
         StunPRespSerializer(StunPartner.Response.class, "stunPRespSerializer"),
         StunEchoRequest(StunEcho.Request.class, "stunEchoRequestSerializer"),
         StunEchoResponse(StunEcho.Response.class, "stunEchoResponseSerializer"),
-        StunEchoReset(StunEcho.Reset.class, "stunEchoResetSerializer");
+        StunEchoReset(StunEcho.Reset.class, "stunEchoResetSerializer"),
+        StunPPingSerializer(StunPartner.Ping.class, "stunPPingSerializer"),
+        StunPPongSerializer(StunPartner.Pong.class, "stunPPongSerializer");
         
         public final Class serializedClass;
         public final String serializerName;
@@ -87,6 +89,14 @@ public class StunSerializerSetup {
         Serializers.register(stunEchoResetSerializer, StunSerializers.StunEchoReset.serializerName);
         Serializers.register(StunSerializers.StunEchoReset.serializedClass, StunSerializers.StunEchoReset.serializerName);
         
+        StunPartnerSerializer.Ping stunPPingSerializer = new StunPartnerSerializer.Ping(currentId++);
+        Serializers.register(stunPPingSerializer, StunSerializers.StunPPingSerializer.serializerName);
+        Serializers.register(StunSerializers.StunPPingSerializer.serializedClass, StunSerializers.StunPPingSerializer.serializerName);
+        
+        StunPartnerSerializer.Pong stunPPongSerializer = new StunPartnerSerializer.Pong(currentId++);
+        Serializers.register(stunPPongSerializer, StunSerializers.StunPPongSerializer.serializerName);
+        Serializers.register(StunSerializers.StunPPongSerializer.serializedClass, StunSerializers.StunPPongSerializer.serializerName);
+        
         assert startingId + serializerIds == currentId;
         return currentId;
     }
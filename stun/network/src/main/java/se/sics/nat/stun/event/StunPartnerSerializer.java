@@ -101,4 +101,56 @@ public class StunPartnerSerializer {
             return new StunPartner.Response(eventId, accept, partnerAdr);
         }
     }
+
+    public static class Ping implements Serializer {
+
+        private final int id;
+
+        public Ping(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public int identifier() {
+            return id;
+        }
+
+        @Override
+        public void toBinary(Object o, ByteBuf buf) {
+            StunPartner.Ping ping = (StunPartner.Ping) o;
+            Serializers.toBinary(ping.msgId, buf);
+        }
+
+        @Override
+        public Object fromBinary(ByteBuf buf, Optional<Object> hint) {
+            Identifier msgId = (Identifier) Serializers.fromBinary(buf, hint);
+            return new StunPartner.Ping(msgId);
+        }
+    }
+
+    public static class Pong implements Serializer {
+
+        private final int id;
+
+        public Pong(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public int identifier() {
+            return id;
+        }
+
+        @Override
+        public void toBinary(Object o, ByteBuf buf) {
+            StunPartner.Pong pong = (StunPartner.Pong) o;
+            Serializers.toBinary(pong.msgId, buf);
+        }
+
+        @Override
+        public Object fromBinary(ByteBuf buf, Optional<Object> hint) {
+            Identifier msgId = (Identifier) Serializers.fromBinary(buf, hint);
+            return new StunPartner.Ping(msgId).pong();
+        }
+    }
 }
@@ -28,9 +28,18 @@ import se.sics.ktoolbox.util.network.nat.NatAwareAddressImpl;
 import se.sics.nat.stun.util.StunView;
 
 /**
+ * The byte after the self address used to be a boolean (has partner). It is
+ * now a flags byte - bit 0 partner, bit 1 load - so views written by older
+ * nodes still read correctly, and views without load are written exactly as
+ * older nodes wrote them. Older nodes cannot read views with load - servers
+ * only attach it with stun.server.advertiseLoad.
+ *
  * @author Alex Ormenisan <aaor@kth.se>
  */
 public class StunViewSerializer implements Serializer {
+    private static final byte PARTNER = 0x01;
+    private static final byte LOAD = 0x02;
+    
     private final int id;
     
     public StunViewSerializer(int id) {
@@ -48,11 +57,23 @@ public class StunViewSerializer implements Serializer {
         Serializer adrSerializer = Serializers.lookupSerializer(NatAwareAddressImpl.class);
         adrSerializer.toBinary(sv.selfStunAdr.getValue0(), buf);
         buf.writeInt(sv.selfStunAdr.getValue1().getPort());
-        buf.writeBoolean(sv.partnerStunAdr.isPresent());
+        byte flags = 0;
+        if (sv.partnerStunAdr.isPresent()) {
+            flags |= PARTNER;
+        }
+        if (sv.load.isPresent()) {
+            flags |= LOAD;
+        }
+        buf.writeByte(flags);
         if(sv.partnerStunAdr.isPresent()) {
             adrSerializer.toBinary(sv.partnerStunAdr.get().getValue0(), buf);
             buf.writeInt(sv.partnerStunAdr.get().getValue1().getPort());
         }
+        if (sv.load.isPresent()) {
+            buf.writeInt(sv.load.get().echoRate);
+            buf.writeByte(Math.min(255, sv.load.get().partners));
+            buf.writeInt(sv.load.get().capacity);
+        }
     }
 
     @Override
@@ -61,15 +82,21 @@ public class StunViewSerializer implements Serializer {
         NatAwareAddressImpl selfStunAdr1 = (NatAwareAddressImpl)adrSerializer.fromBinary(buf, hint);
         int selfStunPort2 = buf.readInt();
         NatAwareAddress selfStunAdr2 = selfStunAdr1.changePublicPort(selfStunPort2);
-        boolean withPartner = buf.readBoolean();
-        if(withPartner) {
+        byte flags = buf.readByte();
+        Optional<Pair<NatAwareAddress, NatAwareAddress>> partner = Optional.absent();
+        if((flags & PARTNER) != 0) {
             NatAwareAddressImpl partnerStunAdr1 = (NatAwareAddressImpl)adrSerializer.fromBinary(buf, hint);
             int partnerStunPort2 = buf.readInt();
             NatAwareAddress partnerStunAdr2 = partnerStunAdr1.changePublicPort(partnerStunPort2);
-            return StunView.partner(Pair.with((NatAwareAddress)selfStunAdr1, selfStunAdr2), 
-                    Pair.with((NatAwareAddress)partnerStunAdr1, partnerStunAdr2));
-        } else {
-            return StunView.empty(Pair.with((NatAwareAddress)selfStunAdr1, selfStunAdr2));
+            partner = Optional.of(Pair.with((NatAwareAddress)partnerStunAdr1, partnerStunAdr2));
+        }
+        Optional<StunView.Load> load = Optional.absent();
+        if ((flags & LOAD) != 0) {
+            int echoRate = buf.readInt();
+            int partners = buf.readUnsignedByte();
+            int capacity = buf.readInt();
+            load = Optional.of(new StunView.Load(echoRate, partners, capacity));
         }
+        return new StunView(Pair.with((NatAwareAddress)selfStunAdr1, selfStunAdr2), partner, load);
     }
 }
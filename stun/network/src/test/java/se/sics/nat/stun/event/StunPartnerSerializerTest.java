@@ -162,4 +162,42 @@ public class StunPartnerSerializerTest {
     Assert.assertEquals(0, serializedCopy.readableBytes());
     compareResponse(original, copy);
   }
+
+  @Test
+  public void testPing() {
+    Serializer serializer = Serializers.lookupSerializer(StunPartner.Ping.class);
+    StunPartner.Ping original, copy;
+    ByteBuf serializedOriginal, serializedCopy;
+
+    original = new StunPartner.Ping(msgIds.randomId());
+
+    serializedOriginal = Unpooled.buffer();
+    serializer.toBinary(original, serializedOriginal);
+
+    serializedCopy = Unpooled.buffer();
+    serializedOriginal.getBytes(0, serializedCopy, serializedOriginal.readableBytes());
+    copy = (StunPartner.Ping) serializer.fromBinary(serializedCopy, Optional.absent());
+
+    Assert.assertEquals(0, serializedCopy.readableBytes());
+    Assert.assertEquals(original.msgId, copy.msgId);
+  }
+
+  @Test
+  public void testPong() {
+    Serializer serializer = Serializers.lookupSerializer(StunPartner.Pong.class);
+    StunPartner.Pong original, copy;
+    ByteBuf serializedOriginal, serializedCopy;
+
+    original = new StunPartner.Ping(msgIds.randomId()).pong();
+
+    serializedOriginal = Unpooled.buffer();
+    serializer.toBinary(original, serializedOriginal);
+
+    serializedCopy = Unpooled.buffer();
+    serializedOriginal.getBytes(0, serializedCopy, serializedOriginal.readableBytes());
+    copy = (StunPartner.Pong) serializer.fromBinary(serializedCopy, Optional.absent());
+
+    Assert.assertEquals(0, serializedCopy.readableBytes());
+    Assert.assertEquals(original.msgId, copy.msgId);
+  }
 }
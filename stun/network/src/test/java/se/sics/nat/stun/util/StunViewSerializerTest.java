@@ -85,6 +85,12 @@ public class StunViewSerializerTest {
                     (NatAwareAddressImpl) original.partnerStunAdr.get().getValue1(),
                     (NatAwareAddressImpl) copy.partnerStunAdr.get().getValue1()));
         }
+        Assert.assertEquals(original.load.isPresent(), copy.load.isPresent());
+        if (original.load.isPresent()) {
+            Assert.assertEquals(original.load.get().echoRate, copy.load.get().echoRate);
+            Assert.assertEquals(original.load.get().partners, copy.load.get().partners);
+            Assert.assertEquals(original.load.get().capacity, copy.load.get().capacity);
+        }
     }
 
     @Test
@@ -130,4 +136,101 @@ public class StunViewSerializerTest {
         Assert.assertEquals(0, serializedCopy.readableBytes());
         compareStunView(original, copy);
     }
+
+    @Test
+    public void testWithLoad() throws UnknownHostException {
+        Serializer serializer = Serializers.lookupSerializer(StunView.class);
+        StunView original, copy;
+        ByteBuf serializedOriginal, serializedCopy;
+
+        NatAwareAddress adr1 = NatAwareAddressImpl.open(new BasicAddress(InetAddress.getLocalHost(), 30000, nodeIdFactory.id(new BasicBuilders.IntBuilder(1))));
+        NatAwareAddress adr2 = NatAwareAddressImpl.open(new BasicAddress(InetAddress.getLocalHost(), 30001, nodeIdFactory.id(new BasicBuilders.IntBuilder(1))));
+        NatAwareAddress adr3 = NatAwareAddressImpl.open(new BasicAddress(InetAddress.getLocalHost(), 30000, nodeIdFactory.id(new BasicBuilders.IntBuilder(2))));
+        NatAwareAddress adr4 = NatAwareAddressImpl.open(new BasicAddress(InetAddress.getLocalHost(), 30001, nodeIdFactory.id(new BasicBuilders.IntBuilder(2))));
+        original = StunView.partner(Pair.with(adr1, adr2), Pair.with(adr3, adr4)).withLoad(new StunView.Load(120, 2, 500));
+
+        serializedOriginal = Unpooled.buffer();
+        serializer.toBinary(original, serializedOriginal);
+
+        serializedCopy = Unpooled.buffer();
+        serializedOriginal.getBytes(0, serializedCopy, serializedOriginal.readableBytes());
+        copy = (StunView) serializer.fromBinary(serializedCopy, Optional.absent());
+
+        Assert.assertEquals(0, serializedCopy.readableBytes());
+        compareStunView(original, copy);
+    }
+
+    @Test
+    public void testReadOldFormat() throws UnknownHostException {
+        Serializer serializer = Serializers.lookupSerializer(StunView.class);
+        Serializer adrSerializer = Serializers.lookupSerializer(NatAwareAddressImpl.class);
+        StunView original, copy;
+        ByteBuf serializedOriginal;
+
+        NatAwareAddress adr1 = NatAwareAddressImpl.open(new BasicAddress(InetAddress.getLocalHost(), 30000, nodeIdFactory.id(new BasicBuilders.IntBuilder(1))));
+        NatAwareAddress adr2 = NatAwareAddressImpl.open(new BasicAddress(InetAddress.getLocalHost(), 30001, nodeIdFactory.id(new BasicBuilders.IntBuilder(1))));
+        NatAwareAddress adr3 = NatAwareAddressImpl.open(new BasicAddress(InetAddress.getLocalHost(), 30000, nodeIdFactory.id(new BasicBuilders.IntBuilder(2))));
+        NatAwareAddress adr4 = NatAwareAddressImpl.open(new BasicAddress(InetAddress.getLocalHost(), 30001, nodeIdFactory.id(new BasicBuilders.IntBuilder(2))));
+        original = StunView.partner(Pair.with(adr1, adr2), Pair.with(adr3, adr4));
+
+        //format written before load was added
+        serializedOriginal = Unpooled.buffer();
+        adrSerializer.toBinary(adr1, serializedOriginal);
+        serializedOriginal.writeInt(adr2.getPort());
+        serializedOriginal.writeBoolean(true);
+        adrSerializer.toBinary(adr3, serializedOriginal);
+        serializedOriginal.writeInt(adr4.getPort());
+
+        copy = (StunView) serializer.fromBinary(serializedOriginal, Optional.absent());
+
+        Assert.assertEquals(0, serializedOriginal.readableBytes());
+        compareStunView(original, copy);
+    }
+
+    @Test
+    public void testOldReaderReadsViewWithoutLoad() throws UnknownHostException {
+        Serializer serializer = Serializers.lookupSerializer(StunView.class);
+        StunView original, copy;
+        ByteBuf serializedOriginal;
+
+        NatAwareAddress adr1 = NatAwareAddressImpl.open(new BasicAddress(InetAddress.getLocalHost(), 30000, nodeIdFactory.id(new BasicBuilders.IntBuilder(1))));
+        NatAwareAddress adr2 = NatAwareAddressImpl.open(new BasicAddress(InetAddress.getLocalHost(), 30001, nodeIdFactory.id(new BasicBuilders.IntBuilder(1))));
+        NatAwareAddress adr3 = NatAwareAddressImpl.open(new BasicAddress(InetAddress.getLocalHost(), 30000, nodeIdFactory.id(new BasicBuilders.IntBuilder(2))));
+        NatAwareAddress adr4 = NatAwareAddressImpl.open(new BasicAddress(InetAddress.getLocalHost(), 30001, nodeIdFactory.id(new BasicBuilders.IntBuilder(2))));
+
+        //what servers advertise unless stun.server.advertiseLoad is on
+        original = StunView.partner(Pair.with(adr1, adr2), Pair.with(adr3, adr4));
+        serializedOriginal = Unpooled.buffer();
+        serializer.toBinary(original, serializedOriginal);
+        copy = oldFromBinary(serializedOriginal);
+        Assert.assertEquals(0, serializedOriginal.readableBytes());
+        compareStunView(original, copy);
+
+        original = StunView.empty(Pair.with(adr1, adr2));
+        serializedOriginal = Unpooled.buffer();
+        serializer.toBinary(original, serializedOriginal);
+        copy = oldFromBinary(serializedOriginal);
+        Assert.assertEquals(0, serializedOriginal.readableBytes());
+        compareStunView(original, copy);
+    }
+
+    /**
+     * StunViewSerializer.fromBinary as it was before load was added
+     */
+    private StunView oldFromBinary(ByteBuf buf) {
+        Serializer adrSerializer = Serializers.lookupSerializer(NatAwareAddressImpl.class);
+        NatAwareAddressImpl selfStunAdr1 = (NatAwareAddressImpl) adrSerializer.fromBinary(buf, Optional.absent());
+        int selfStunPort2 = buf.readInt();
+        NatAwareAddress selfStunAdr2 = selfStunAdr1.changePublicPort(selfStunPort2);
+        boolean withPartner = buf.readBoolean();
+        if (withPartner) {
+            NatAwareAddressImpl partnerStunAdr1 = (NatAwareAddressImpl) adrSerializer.fromBinary(buf, Optional.absent());
+            int partnerStunPort2 = buf.readInt();
+            NatAwareAddress partnerStunAdr2 = partnerStunAdr1.changePublicPort(partnerStunPort2);
+            return StunView.partner(Pair.with((NatAwareAddress) selfStunAdr1, selfStunAdr2),
+                    Pair.with((NatAwareAddress) partnerStunAdr1, partnerStunAdr2));
+        } else {
+            return StunView.empty(Pair.with((NatAwareAddress) selfStunAdr1, selfStunAdr2));
+        }
+    }
 }
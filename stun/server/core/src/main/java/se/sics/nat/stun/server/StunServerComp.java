@@ -18,6 +18,11 @@
  */
 package se.sics.nat.stun.server;
 
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.function.Consumer;
@@ -32,6 +37,7 @@ import se.sics.kompics.network.Network;
 import se.sics.kompics.network.Transport;
 import se.sics.kompics.timer.Timer;
 import se.sics.ktoolbox.croupier.CroupierPort;
+import se.sics.kompics.util.Identifier;
 import se.sics.ktoolbox.croupier.event.CroupierSample;
 import se.sics.ktoolbox.nutil.timer.TimerProxy;
 import se.sics.ktoolbox.nutil.timer.TimerProxyImpl;
@@ -50,6 +56,9 @@ import se.sics.ktoolbox.util.overlays.view.OverlayViewUpdate;
 import se.sics.ktoolbox.util.overlays.view.OverlayViewUpdatePort;
 import se.sics.nat.stun.event.StunEcho;
 import se.sics.nat.stun.event.StunPartner;
+import se.sics.nat.stun.server.util.RateLimiter;
+import se.sics.nat.stun.server.util.TokenBucket;
+import se.sics.nat.stun.util.RTTEstimator;
 import se.sics.nat.stun.util.StunView;
 
 /**
@@ -98,6 +107,8 @@ public class StunServerComp extends ComponentDefinition {
     subscribe(partnerMngr.handleSamples, croupierPort);
     subscribe(partnerMngr.handlePartnerRequest, networkPort);
     subscribe(partnerMngr.handlePartnerResponse, networkPort);
+    subscribe(partnerMngr.handlePing, networkPort);
+    subscribe(partnerMngr.handlePong, networkPort);
   }
 
   //******************************CONTROL*************************************
@@ -118,11 +129,7 @@ public class StunServerComp extends ComponentDefinition {
     @Override
     public void handle(OverlayViewUpdate.Request req) {
       logger.debug("received:{}", req);
-      if (partnerMngr.partner == null) {
-        answer(req, req.update(StunView.empty(selfAdr)));
-      } else {
-        answer(req, req.update(StunView.partner(selfAdr, partnerMngr.partner)));
-      }
+      answer(req, req.update(partnerMngr.view()));
     }
   };
 
@@ -130,100 +137,306 @@ public class StunServerComp extends ComponentDefinition {
   private void send(Object content, NatAwareAddress src, NatAwareAddress dst) {
     KHeader<NatAwareAddress> header = new BasicHeader(src, dst, Transport.UDP);
     KContentMsg container = new BasicContentMsg(header, content);
-    logger.trace("sending:{}", new Object[]{container});
+    //single arg - no varargs array when trace is off
+    logger.trace("sending:{}", container);
     trigger(container, networkPort);
   }
 
   private void send(KContentMsg container) {
-    logger.trace("sending:{}", new Object[]{container});
+    logger.trace("sending:{}", container);
     trigger(container, networkPort);
   }
 
   //**************************************************************************
+  /**
+   * Hot path - every joining node sends its echoes here. Keep it free of
+   * per echo work beyond the response itself: no log argument arrays, no
+   * repeated lookups.
+   * <p>
+   * Echoes are rate limited per source ip. The source ip comes from the
+   * packet header and can be spoofed, so this only slows down a single
+   * sender - the global bucket bounds everything we send, whatever the
+   * sources. New ips start with stun.server.limit.initialBurst tokens, not a
+   * full bucket, so rotating ips does not buy a burst each. DIP_DP makes us
+   * (through the partner) send to content.target, so it is only forwarded
+   * when target and source are the same ip and only answered when forwarded
+   * by a partner, rate limited per target ip. Anything else would make us a
+   * reflector.
+   */
   private class EchoMngr {
 
+    private final NatAwareAddress port1Adr = selfAdr.getValue0();
+    private final NatAwareAddress port2Adr = selfAdr.getValue1();
+    private final RateLimiter<InetAddress> srcLimiter = new RateLimiter<>(stunServerConfig.limitRate,
+      stunServerConfig.limitBurst, stunServerConfig.limitInitialBurst, stunServerConfig.limitMaxKeys);
+    private final RateLimiter<InetAddress> targetLimiter = new RateLimiter<>(stunServerConfig.limitTargetRate,
+      stunServerConfig.limitBurst, stunServerConfig.limitInitialBurst, stunServerConfig.limitMaxKeys);
+    private final TokenBucket globalLimiter = new TokenBucket(stunServerConfig.limitGlobalRate,
+      stunServerConfig.limitGlobalBurst, stunServerConfig.limitGlobalBurst, System.currentTimeMillis());
+    private long globalDropped = 0;
+    private long rejected = 0;
+    private long lastReport = System.currentTimeMillis();
+    //load - answered echoes since the last sample and the smoothed rate
+    private long answered = 0;
+    private long lastSample = System.currentTimeMillis();
+    private int echoRate = 0;
+
     ClassMatchedHandler handleEchoRequest
       = new ClassMatchedHandler<StunEcho.Request, BasicContentMsg<NatAwareAddress, KHeader<NatAwareAddress>, StunEcho.Request>>() {
 
       @Override
       public void handle(StunEcho.Request content,
         BasicContentMsg<NatAwareAddress, KHeader<NatAwareAddress>, StunEcho.Request> container) {
-        if (partnerMngr.getPartner() == null) {
+        long now = System.currentTimeMillis();
+        reportDrops(now);
+        NatAwareAddress src = container.getSource();
+        if (partnerMngr.isPartner(src)) {
+          handleFromPartner(content, now);
+          return;
+        }
+        if (!srcLimiter.tryAcquire(src.getIp(), now)) {
+          return;
+        }
+        if (!globalLimiter.tryAcquire(now)) {
+          globalDropped++;
+          return;
+        }
+        if (!partnerMngr.hasPartner()) {
           send(container.answer(content.reset()));
           return;
         }
-        logger.debug("received:{}", new Object[]{container});
+        logger.trace("received:{}", container);
+        answered++;
         switch (content.type) {
           case SIP_SP: {
-            send(container.answer(content.answer(container.getSource())));
+            send(container.answer(content.answer(src)));
           }
           break;
           case SIP_DP: {
-            send(content.answer(container.getSource()), selfAdr.getValue1(), container.getSource());
+            send(content.answer(src), port2Adr, src);
           }
           break;
           case DIP_DP: {
-            if (container.getSource().getId().equals(content.target.getId())) {
+            if (src.getId().equals(content.target.getId()) && src.getIp().equals(content.target.getIp())) {
               //forward to partner
-              send(content, selfAdr.getValue0(), partnerMngr.getPartner());
+              send(content, port1Adr, partnerMngr.nextPartner());
             } else {
-              send(content.answer(), selfAdr.getValue1(), content.target);
+              rejected++;
             }
           }
           break;
+          default:
+            rejected++;
         }
       }
     };
+
+    private void handleFromPartner(StunEcho.Request content, long now) {
+      if (!StunEcho.Type.DIP_DP.equals(content.type) || content.target == null) {
+        rejected++;
+        return;
+      }
+      if (!targetLimiter.tryAcquire(content.target.getIp(), now)) {
+        return;
+      }
+      if (!globalLimiter.tryAcquire(now)) {
+        globalDropped++;
+        return;
+      }
+      answered++;
+      send(content.answer(), port2Adr, content.target);
+    }
+
+    void sampleRate(long now) {
+      if (now <= lastSample) {
+        return;
+      }
+      int rate = (int) (answered * 1000 / (now - lastSample));
+      echoRate = (echoRate + rate) / 2;
+      answered = 0;
+      lastSample = now;
+    }
+
+    private void reportDrops(long now) {
+      if (now - lastReport < stunServerConfig.limitReportPeriod) {
+        return;
+      }
+      lastReport = now;
+      long srcDropped = srcLimiter.resetDropped();
+      long targetDropped = targetLimiter.resetDropped();
+      if (srcDropped + targetDropped + globalDropped + rejected > 0) {
+        logger.warn("echo drops - src rate:{} target rate:{} global rate:{} rejected:{}",
+          new Object[]{srcDropped, targetDropped, globalDropped, rejected});
+      }
+      globalDropped = 0;
+      rejected = 0;
+    }
   }
 
+  /**
+   * Keeps a pool of up to stun.server.partners.max partners. The first one is
+   * the one we advertise, DIP_DP forwards are spread round robin over all of
+   * them - clients take the answer from any ip other than ours - and losing
+   * one only shrinks the pool - we keep searching while it is not full.
+   * <p>
+   * Partners ping each other every stun.server.heartbeat.period. A partner
+   * silent for stun.server.heartbeat.missed beats is dropped. Pings from
+   * nodes we do not consider partners are not answered, so a partner that
+   * dropped us is dropped in turn.
+   */
   private class PartnerMngr {
 
-    private Pair<NatAwareAddress, NatAwareAddress> partner;
+    private final List<Pair<NatAwareAddress, NatAwareAddress>> partners = new ArrayList<>();
+    private int nextForward = 0;
+    private boolean echoSubscribed = false;
+    //<partner id, missed beats>
+    private final Map<Identifier, Integer> missedBeats = new HashMap<>();
+    private int advertisedRate = 0;
     private Pair<UUID, NatAwareAddress> pendingPartner;
+    private long pendingPartnerSentAt;
+    private final RTTEstimator partnerRtt = new RTTEstimator(stunServerConfig.rtoInit, stunServerConfig.rtoMin,
+      stunServerConfig.rtoMax);
 
     void start() {
       logger.info("looking for partner");
-      trigger(new OverlayViewUpdate.Indication(eventIds.randomId(), croupierId, false, StunView.empty(selfAdr)),
-        croupierViewPort);
+      advertise();
+      scheduleHeartbeat();
+    }
+
+    private void scheduleHeartbeat() {
+      timerProxy.scheduleTimer(stunServerConfig.heartbeatPeriod, heartbeat());
+    }
+
+    private Consumer<Boolean> heartbeat() {
+      return (_ignore) -> {
+        for (Pair<NatAwareAddress, NatAwareAddress> partner : new ArrayList<>(partners)) {
+          Identifier partnerId = partner.getValue0().getId();
+          int missed = missedBeats.get(partnerId);
+          if (missed >= stunServerConfig.heartbeatMissed) {
+            logger.warn("partner:{} suspected - missed:{} beats", new Object[]{partnerId, missed});
+            removePartner(partnerId);
+            continue;
+          }
+          missedBeats.put(partnerId, missed + 1);
+          send(new StunPartner.Ping(msgIds.randomId()), selfAdr.getValue0(), partner.getValue0());
+        }
+        echoMngr.sampleRate(System.currentTimeMillis());
+        if (stunServerConfig.advertiseLoad
+          && Math.abs(echoMngr.echoRate - advertisedRate) > Math.max(10, advertisedRate / 4)) {
+          advertise();
+        }
+        scheduleHeartbeat();
+      };
+    }
+
+    ClassMatchedHandler handlePing
+      = new ClassMatchedHandler<StunPartner.Ping, KContentMsg<NatAwareAddress, KHeader<NatAwareAddress>, StunPartner.Ping>>() {
+
+      @Override
+      public void handle(StunPartner.Ping content,
+        KContentMsg<NatAwareAddress, KHeader<NatAwareAddress>, StunPartner.Ping> container) {
+        NatAwareAddress src = container.getHeader().getSource();
+        if (!isPartner(src)) {
+          logger.debug("ping from non partner:{}", src.getId());
+          return;
+        }
+        missedBeats.put(src.getId(), 0);
+        send(container.answer(content.pong()));
+      }
+    };
+
+    ClassMatchedHandler handlePong
+      = new ClassMatchedHandler<StunPartner.Pong, KContentMsg<NatAwareAddress, KHeader<NatAwareAddress>, StunPartner.Pong>>() {
+
+      @Override
+      public void handle(StunPartner.Pong content,
+        KContentMsg<NatAwareAddress, KHeader<NatAwareAddress>, StunPartner.Pong> container) {
+        NatAwareAddress src = container.getHeader().getSource();
+        if (isPartner(src)) {
+          missedBeats.put(src.getId(), 0);
+        }
+      }
+    };
+
+    boolean hasPartner() {
+      return !partners.isEmpty();
+    }
+
+    StunView view() {
+      StunView view;
+      if (partners.isEmpty()) {
+        view = StunView.empty(selfAdr);
+      } else {
+        view = StunView.partner(selfAdr, partners.get(0));
+      }
+      if (!stunServerConfig.advertiseLoad) {
+        return view;
+      }
+      return view.withLoad(new StunView.Load(echoMngr.echoRate, partners.size(), stunServerConfig.capacity));
+    }
+
+    /**
+     * @return the partner that should answer the next DIP_DP
+     */
+    NatAwareAddress nextPartner() {
+      if (nextForward >= partners.size()) {
+        nextForward = 0;
+      }
+      return partners.get(nextForward++).getValue0();
+    }
+
+    boolean isPartner(NatAwareAddress adr) {
+      int idx = find(adr.getId());
+      return idx != -1 && partners.get(idx).getValue0().getIp().equals(adr.getIp());
+    }
+
+    private int find(Identifier partnerId) {
+      for (int i = 0; i < partners.size(); i++) {
+        if (partners.get(i).getValue0().getId().equals(partnerId)) {
+          return i;
+        }
+      }
+      return -1;
     }
 
-    NatAwareAddress getPartner() {
-      return partner.getValue0();
+    private boolean full() {
+      return partners.size() >= stunServerConfig.maxPartners;
     }
 
     Handler handleSamples = new Handler<CroupierSample<StunView>>() {
 
       @Override
       public void handle(CroupierSample<StunView> sample) {
-        if (partner != null) {
+        if (full() || pendingPartner != null) {
           return;
         }
         if (selfAdr.getValue0().getId().partition(2) == 1) {
           return; // 0s search for partners actively
         }
         for (Container<KAddress, StunView> source : sample.publicSample.values()) {
-          if (source.getContent().hasPartner()) {
+          if (source.getSource().getId().partition(2) == 0) {
             continue;
           }
-          if (source.getSource().getId().partition(2) == 0) {
+          if (find(source.getSource().getId()) != -1) {
             continue;
           }
           NatAwareAddress partnerAdr = (NatAwareAddress) source.getSource();
-          pendingPartner = Pair.with(msgTimeout(), partnerAdr);
+          pendingPartner = Pair.with(msgTimeout(partnerAdr), partnerAdr);
+          pendingPartnerSentAt = System.currentTimeMillis();
           send(new StunPartner.Request(msgIds.randomId(), selfAdr), selfAdr.getValue0(), partnerAdr);
           break;
         }
       }
     };
 
-    private UUID msgTimeout() {
-      long msgDelay = stunServerConfig.rtt;
+    private UUID msgTimeout(NatAwareAddress partnerAdr) {
+      long msgDelay = partnerRtt.rto(partnerAdr.getId());
       return timerProxy.scheduleTimer(msgDelay, msgTimer());
     }
 
     private Consumer<Boolean> msgTimer() {
       return (_ignore) -> {
-        logger.warn("{}timeout - partner:{}", new Object[]{pendingPartner.getValue1()});
+        logger.warn("timeout - partner:{}", new Object[]{pendingPartner.getValue1()});
         pendingPartner = null;
       };
     }
@@ -236,17 +449,20 @@ public class StunServerComp extends ComponentDefinition {
         KContentMsg<NatAwareAddress, KHeader<NatAwareAddress>, StunPartner.Request> container) {
         logger.trace("received:{}", new Object[]{container});
         NatAwareAddress requestingPartner = container.getHeader().getSource();
-        if (partner != null && partner.getValue0().getId().equals(requestingPartner.getId())) {
-          logger.debug("already have a partner");
+        if (find(requestingPartner.getId()) != -1) {
+          //our accept was probably lost
+          send(container.answer(content.accept(selfAdr)));
+          return;
+        }
+        if (full()) {
+          logger.debug("partner pool full");
           send(container.answer(content.deny()));
+          return;
         }
         if (selfAdr.getValue0().getId().partition(2) == 0) {
           throw new RuntimeException("logic error - active searchers should not get requests");
         }
-
-        partner = content.partnerAdr;
-        logger.info("partnered with:{}", new Object[]{partner.getValue0().getId()});
-        foundPartner();
+        addPartner(content.partnerAdr);
         send(container.answer(content.accept(selfAdr)));
       }
     };
@@ -257,49 +473,58 @@ public class StunServerComp extends ComponentDefinition {
       @Override
       public void handle(StunPartner.Response content,
         KContentMsg<NatAwareAddress, KHeader<NatAwareAddress>, StunPartner.Response> container) {
-        logger.trace("{}received:{}", new Object[]{container});
+        logger.trace("received:{}", new Object[]{container});
         NatAwareAddress respondingPartner = container.getHeader().getSource();
-        if (partner != null) {
-          if (partner.getValue0().getId().equals(respondingPartner.getId())) {
-            //a bit weird I already answered him, but maybe message got lost
-            return;
-          } else {
-            //probably a slow connection an he timedout in a previous round
-            //the epfd should fix this - no need to fix
-            return;
-          }
+        if (find(respondingPartner.getId()) != -1) {
+          //a bit weird I already answered him, but maybe message got lost
+          return;
         }
-        if (pendingPartner != null && !pendingPartner.getValue1().getId().equals(respondingPartner.getId())) {
+        if (pendingPartner == null || !pendingPartner.getValue1().getId().equals(respondingPartner.getId())) {
           //probably a slow connection an he timedout in a previous round
-          //the epfd should fix this - no need to fix;
           return;
         }
         //clean session
-        if (pendingPartner != null) {
-          timerProxy.cancelTimer(pendingPartner.getValue0());
-          pendingPartner = null;
-        }
-        if (!content.accept) {
+        partnerRtt.update(respondingPartner.getId(), System.currentTimeMillis() - pendingPartnerSentAt);
+        timerProxy.cancelTimer(pendingPartner.getValue0());
+        pendingPartner = null;
+        if (!content.accept || full()) {
           return;
         }
         //success
-        partner = content.partnerAdr.get();
-
-        logger.info("partnered with:{}", new Object[]{partner.getValue0().getId()});
-        foundPartner();
+        addPartner(content.partnerAdr.get());
       }
     };
 
-    private void foundPartner() {
-      subscribe(echoMngr.handleEchoRequest, networkPort);
-      //TODO Alex - fix epfd and add
-      //trigger(new EPFDFollow(partner.getValue0(), stunServerConfig.stunService,
-      //                StunServerComp.this.getComponentCore().id()), fdPort);
-      trigger(new OverlayViewUpdate.Indication(eventIds.randomId(), croupierId, false, StunView.
-        partner(selfAdr, partner)), croupierViewPort);
+    private void addPartner(Pair<NatAwareAddress, NatAwareAddress> partner) {
+      partners.add(partner);
+      missedBeats.put(partner.getValue0().getId(), 0);
+      logger.info("partnered with:{} pool:{}", new Object[]{partner.getValue0().getId(), partners.size()});
+      if (!echoSubscribed) {
+        subscribe(echoMngr.handleEchoRequest, networkPort);
+        echoSubscribed = true;
+      }
+      advertise();
+    }
 
+    /**
+     * Fail over - forwards go to the remaining partners right away.
+     */
+    void removePartner(Identifier partnerId) {
+      int idx = find(partnerId);
+      if (idx == -1) {
+        return;
+      }
+      partners.remove(idx);
+      missedBeats.remove(partnerId);
+      logger.warn("lost partner:{} pool:{}", new Object[]{partnerId, partners.size()});
+      //the advertised partner - and with load the partner count - may have changed
+      advertise();
     }
 
+    private void advertise() {
+      advertisedRate = echoMngr.echoRate;
+      trigger(new OverlayViewUpdate.Indication(eventIds.randomId(), croupierId, false, view()), croupierViewPort);
+    }
   }
 
   public static class Init extends se.sics.kompics.Init<StunServerComp> {
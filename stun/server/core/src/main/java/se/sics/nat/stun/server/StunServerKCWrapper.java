@@ -30,11 +30,68 @@ public class StunServerKCWrapper {
     public final Config configCore;
     public final Pair<Integer, Integer> stunServerPorts;
     public final boolean hardBind = true;
-    public final long rtt = 2000;
+    public final long rtoInit;
+    public final long rtoMin;
+    public final long rtoMax;
+    public final int maxPartners;
+    public final long heartbeatPeriod;
+    public final int heartbeatMissed;
+    /**
+     * attach the load to the advertised StunView - nodes from before load was added misread such views, so keep it
+     * off until every node is upgraded
+     */
+    public final boolean advertiseLoad;
+    /**
+     * echoes per second this server is willing to answer - advertised with its load
+     */
+    public final int capacity;
+    /**
+     * echoes per second per source ip (targetRate - per DIP_DP target ip), 
+     * burst is the bucket size, initialBurst the tokens of an ip seen for the first time, 
+     * maxKeys bounds the tracked ips
+     */
+    public final double limitRate;
+    public final double limitTargetRate;
+    public final int limitBurst;
+    public final int limitInitialBurst;
+    /**
+     * echoes per second over all ips - source ips can be spoofed, this is what bounds our output
+     */
+    public final double limitGlobalRate;
+    public final int limitGlobalBurst;
+    public final int limitMaxKeys;
+    public final long limitReportPeriod;
 
     public StunServerKCWrapper(Config configCore) {
         this.configCore = configCore;
         this.stunServerPorts = Pair.with(KConfigHelper.read(configCore, StunServerKConfig.stunServerPort1),
                 KConfigHelper.read(configCore, StunServerKConfig.stunServerPort2));
+        this.rtoInit = configCore.readValue(StunServerKConfig.rtoInit.name, StunServerKConfig.rtoInit.type).or(2000l);
+        this.rtoMin = configCore.readValue(StunServerKConfig.rtoMin.name, StunServerKConfig.rtoMin.type).or(50l);
+        this.rtoMax = configCore.readValue(StunServerKConfig.rtoMax.name, StunServerKConfig.rtoMax.type).or(2000l);
+        this.maxPartners = configCore.readValue(StunServerKConfig.maxPartners.name, StunServerKConfig.maxPartners.type)
+                .or(3);
+        this.heartbeatPeriod = configCore.readValue(StunServerKConfig.heartbeatPeriod.name, 
+                StunServerKConfig.heartbeatPeriod.type).or(1000l);
+        this.heartbeatMissed = configCore.readValue(StunServerKConfig.heartbeatMissed.name, 
+                StunServerKConfig.heartbeatMissed.type).or(3);
+        this.advertiseLoad = configCore.readValue(StunServerKConfig.advertiseLoad.name, 
+                StunServerKConfig.advertiseLoad.type).or(false);
+        this.capacity = configCore.readValue(StunServerKConfig.capacity.name, StunServerKConfig.capacity.type).or(1000);
+        this.limitRate = configCore.readValue(StunServerKConfig.limitRate.name, StunServerKConfig.limitRate.type).or(50d);
+        this.limitTargetRate = configCore.readValue(StunServerKConfig.limitTargetRate.name, 
+                StunServerKConfig.limitTargetRate.type).or(20d);
+        this.limitBurst = configCore.readValue(StunServerKConfig.limitBurst.name, StunServerKConfig.limitBurst.type)
+                .or(100);
+        this.limitInitialBurst = configCore.readValue(StunServerKConfig.limitInitialBurst.name, 
+                StunServerKConfig.limitInitialBurst.type).or(4);
+        this.limitGlobalRate = configCore.readValue(StunServerKConfig.limitGlobalRate.name, 
+                StunServerKConfig.limitGlobalRate.type).or((double) capacity);
+        this.limitGlobalBurst = configCore.readValue(StunServerKConfig.limitGlobalBurst.name, 
+                StunServerKConfig.limitGlobalBurst.type).or(limitBurst);
+        this.limitMaxKeys = configCore.readValue(StunServerKConfig.limitMaxKeys.name, 
+                StunServerKConfig.limitMaxKeys.type).or(10000);
+        this.limitReportPeriod = configCore.readValue(StunServerKConfig.limitReportPeriod.name, 
+                StunServerKConfig.limitReportPeriod.type).or(60000l);
     }
 }
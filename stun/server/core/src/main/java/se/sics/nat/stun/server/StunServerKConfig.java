@@ -26,4 +26,20 @@ import se.sics.ktoolbox.util.config.KConfigOption;
 public class StunServerKConfig {
     public final static KConfigOption.Basic<Integer> stunServerPort1 = new KConfigOption.Basic("stun.server.port1", Integer.class);
     public final static KConfigOption.Basic<Integer> stunServerPort2 = new KConfigOption.Basic("stun.server.port2", Integer.class);
+    public final static KConfigOption.Basic<Long> rtoInit = new KConfigOption.Basic("stun.server.rto.init", Long.class);
+    public final static KConfigOption.Basic<Long> rtoMin = new KConfigOption.Basic("stun.server.rto.min", Long.class);
+    public final static KConfigOption.Basic<Long> rtoMax = new KConfigOption.Basic("stun.server.rto.max", Long.class);
+    public final static KConfigOption.Basic<Integer> maxPartners = new KConfigOption.Basic("stun.server.partners.max", Integer.class);
+    public final static KConfigOption.Basic<Long> heartbeatPeriod = new KConfigOption.Basic("stun.server.heartbeat.period", Long.class);
+    public final static KConfigOption.Basic<Integer> heartbeatMissed = new KConfigOption.Basic("stun.server.heartbeat.missed", Integer.class);
+    public final static KConfigOption.Basic<Boolean> advertiseLoad = new KConfigOption.Basic("stun.server.advertiseLoad", Boolean.class);
+    public final static KConfigOption.Basic<Integer> capacity = new KConfigOption.Basic("stun.server.capacity", Integer.class);
+    public final static KConfigOption.Basic<Double> limitRate = new KConfigOption.Basic("stun.server.limit.rate", Double.class);
+    public final static KConfigOption.Basic<Double> limitTargetRate = new KConfigOption.Basic("stun.server.limit.targetRate", Double.class);
+    public final static KConfigOption.Basic<Integer> limitBurst = new KConfigOption.Basic("stun.server.limit.burst", Integer.class);
+    public final static KConfigOption.Basic<Integer> limitInitialBurst = new KConfigOption.Basic("stun.server.limit.initialBurst", Integer.class);
+    public final static KConfigOption.Basic<Double> limitGlobalRate = new KConfigOption.Basic("stun.server.limit.globalRate", Double.class);
+    public final static KConfigOption.Basic<Integer> limitGlobalBurst = new KConfigOption.Basic("stun.server.limit.globalBurst", Integer.class);
+    public final static KConfigOption.Basic<Integer> limitMaxKeys = new KConfigOption.Basic("stun.server.limit.maxKeys", Integer.class);
+    public final static KConfigOption.Basic<Long> limitReportPeriod = new KConfigOption.Basic("stun.server.limit.reportPeriod", Long.class);
 }
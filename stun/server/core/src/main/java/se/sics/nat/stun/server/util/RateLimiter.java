@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * NatTraverser is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.nat.stun.server.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Token bucket per key (usually a source ip). Buckets live in an access
+ * ordered map capped at maxKeys - the least recently seen key is evicted, so
+ * memory stays bounded no matter how many sources (spoofed or not) show up.
+ * <p>
+ * New and evicted keys start with initialTokens only, not with a full burst,
+ * so cycling through keys does not buy a burst per key. Keys are whatever the
+ * caller trusts them to be - a source ip from a packet header can be spoofed,
+ * so a per key limit alone does not bound the total; pair it with a
+ * TokenBucket over all keys.
+ *
+ * @author Alex Ormenisan <aaor@kth.se>
+ */
+public class RateLimiter<K> {
+
+    private final double rate;
+    private final double burst;
+    private final double initialTokens;
+    private final Map<K, TokenBucket> buckets;
+    private long dropped = 0;
+
+    /**
+     * @param rate tokens per second
+     * @param burst bucket capacity
+     * @param initialTokens tokens of a key seen for the first time (or again after eviction)
+     * @param maxKeys max tracked keys
+     */
+    public RateLimiter(double rate, int burst, int initialTokens, final int maxKeys) {
+        this.rate = rate;
+        this.burst = burst;
+        this.initialTokens = initialTokens;
+        this.buckets = new LinkedHashMap<K, TokenBucket>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, TokenBucket> eldest) {
+                return size() > maxKeys;
+            }
+        };
+    }
+
+    public boolean tryAcquire(K key, long now) {
+        TokenBucket b = buckets.get(key);
+        if (b == null) {
+            b = new TokenBucket(rate, burst, initialTokens, now);
+            buckets.put(key, b);
+        }
+        if (!b.tryAcquire(now)) {
+            dropped++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return dropped requests since the last call
+     */
+    public long resetDropped() {
+        long d = dropped;
+        dropped = 0;
+        return d;
+    }
+}
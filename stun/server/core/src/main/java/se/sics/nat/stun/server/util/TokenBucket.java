@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * NatTraverser is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.nat.stun.server.util;
+
+/**
+ * Single token bucket - refilled at rate tokens per second up to burst.
+ *
+ * @author Alex Ormenisan <aaor@kth.se>
+ */
+public class TokenBucket {
+
+    private final double tokensPerMs;
+    private final double burst;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param rate tokens per second
+     * @param burst bucket capacity
+     * @param tokens tokens in the bucket at now
+     */
+    public TokenBucket(double rate, double burst, double tokens, long now) {
+        this.tokensPerMs = rate / 1000;
+        this.burst = burst;
+        this.tokens = Math.min(burst, tokens);
+        this.lastRefill = now;
+    }
+
+    public boolean tryAcquire(long now) {
+        if (now > lastRefill) {
+            tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerMs);
+            lastRefill = now;
+        }
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+}
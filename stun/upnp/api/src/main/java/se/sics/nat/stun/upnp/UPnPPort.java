@@ -21,6 +21,7 @@ package se.sics.nat.stun.upnp;
 import se.sics.kompics.PortType;
 import se.sics.nat.stun.upnp.event.UPnPReady;
 import se.sics.nat.stun.upnp.event.UPnPMap;
+import se.sics.nat.stun.upnp.event.UPnPMapLost;
 import se.sics.nat.stun.upnp.event.UPnPUnmap;
 
 /**
@@ -31,6 +32,7 @@ public class UPnPPort extends PortType {
         indication(UPnPReady.class);
         request(UPnPMap.Request.class);
         indication(UPnPMap.Response.class);
+        indication(UPnPMapLost.class);
         request(UPnPUnmap.Request.class);
         indication(UPnPUnmap.Response.class);
     }
@@ -0,0 +1,174 @@
+/******************************************************************
+*
+*	CyberHTTP for Java
+*
+*	Copyright (C) Satoshi Konno 2002-2004
+*
+*	File: HTTPInputBuffer.java
+*
+*	Revision;
+*
+*	10/18/26
+*		- first revision.
+*		- Buffered reader for HTTPPacket::set(). Lines are found by scanning
+*		  the buffer for LF instead of reading the stream one byte at a time,
+*		  chunk sizes are parsed from the bytes and content is copied straight
+*		  out of the buffer. The buffer is kept per thread and reused.
+*		- Lines over MAX_BUFFER_SIZE and chunk sizes over MAX_CHUNK_SIZE_DIGITS
+*		  hex digits are refused.
+*
+******************************************************************/
+
+package org.cybergarage.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+class HTTPInputBuffer
+{
+	private final static int BUFFER_SIZE = 8 * 1024;
+	// a header or chunk-size line longer than this is not HTTP
+	private final static int MAX_BUFFER_SIZE = 64 * 1024;
+	// 15 hex digits keep the chunk size positive
+	private final static int MAX_CHUNK_SIZE_DIGITS = 15;
+
+	private final static ThreadLocal<byte[]> threadBuffer = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue()
+		{
+			return new byte[BUFFER_SIZE];
+		}
+	};
+
+	private final InputStream in;
+	private byte buf[];
+	private int pos = 0;
+	private int limit = 0;
+	private boolean eof = false;
+
+	////////////////////////////////////////////////
+	//	Constructor
+	////////////////////////////////////////////////
+
+	public HTTPInputBuffer(InputStream in)
+	{
+		this.in = in;
+		this.buf = threadBuffer.get();
+	}
+
+	////////////////////////////////////////////////
+	//	fill
+	////////////////////////////////////////////////
+
+	// Reads more bytes after limit, moving the unread ones to the front or growing the buffer when full.
+	private boolean fill() throws IOException
+	{
+		if (eof == true)
+			return false;
+		if (0 < pos) {
+			System.arraycopy(buf, pos, buf, 0, limit - pos);
+			limit -= pos;
+			pos = 0;
+		}
+		if (limit == buf.length) {
+			if (MAX_BUFFER_SIZE <= buf.length)
+				throw new IOException("HTTP line over " + MAX_BUFFER_SIZE + " bytes");
+			byte newBuf[] = new byte[buf.length * 2];
+			System.arraycopy(buf, 0, newBuf, 0, limit);
+			buf = newBuf;
+		}
+		int readLen = in.read(buf, limit, buf.length - limit);
+		if (readLen <= 0) {
+			eof = true;
+			return false;
+		}
+		limit += readLen;
+		return true;
+	}
+
+	////////////////////////////////////////////////
+	//	readLine
+	////////////////////////////////////////////////
+
+	// Returns the line without CR/LF, "" at the end of the stream.
+	public String readLine() throws IOException
+	{
+		int scanned = pos;
+		while (true) {
+			for (int n=scanned; n<limit; n++) {
+				if (buf[n] != HTTP.LF)
+					continue;
+				int end = n;
+				if (pos < end && buf[end-1] == HTTP.CR)
+					end--;
+				String line = new String(buf, pos, end - pos);
+				pos = n + 1;
+				return line;
+			}
+			scanned = limit - pos;
+			if (fill() == false)
+				break;
+			// fill() moved the unread bytes to the front
+			scanned += pos;
+		}
+		String line = new String(buf, pos, limit - pos);
+		pos = limit;
+		return line;
+	}
+
+	////////////////////////////////////////////////
+	//	Chunk
+	////////////////////////////////////////////////
+
+	// Parses the hex chunk size of a chunk-size line and skips any extension, -1 if there is none.
+	public long readChunkSize() throws IOException
+	{
+		long size = 0;
+		int digits = 0;
+		boolean inExtension = false;
+		while (true) {
+			if (limit <= pos && fill() == false)
+				return (0 < digits) ? size : -1;
+			byte b = buf[pos++];
+			if (b == HTTP.LF)
+				return (0 < digits) ? size : -1;
+			if (inExtension == true || b == HTTP.CR || b == ' ' || b == '\t')
+				continue;
+			if (b == ';') {
+				inExtension = true;
+				continue;
+			}
+			int digit = Character.digit(b, 16);
+			if (digit < 0 || MAX_CHUNK_SIZE_DIGITS <= digits)
+				return -1;
+			size = (size << 4) + digit;
+			digits++;
+		}
+	}
+
+	// Skips the CRLF after the chunk data.
+	public void skipLine() throws IOException
+	{
+		readLine();
+	}
+
+	////////////////////////////////////////////////
+	//	read
+	////////////////////////////////////////////////
+
+	// Copies len bytes to out, returns the bytes actually copied.
+	public long readTo(ByteArrayOutputStream out, long len) throws IOException
+	{
+		long readCnt = 0;
+		while (readCnt < len) {
+			if (limit <= pos && fill() == false)
+				break;
+			int n = (int)Math.min(len - readCnt, limit - pos);
+			out.write(buf, pos, n);
+			pos += n;
+			readCnt += n;
+		}
+		return readCnt;
+	}
+}
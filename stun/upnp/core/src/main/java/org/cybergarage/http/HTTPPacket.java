@@ -71,19 +71,26 @@
 *	11/06/05
 *		- Added getCharSet().
 *		- Changed getContentString() to return the content string using the charset.
+*	10/18/26
+*		- Changed set() to read through HTTPInputBuffer instead of byte by byte,
+*		  to read a Content-Length body straight into the content and to parse
+*		  chunk sizes from the bytes.
+*		- Changed the headers to an ArrayList with a case-insensitive TreeMap index.
+*		- Changed set() to refuse contents over MAX_CONTENT_LENGTH and to grow the
+*		  content buffer as the bytes arrive instead of allocating Content-Length.
 *
 *******************************************************************/
 
 package org.cybergarage.http;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.StringTokenizer;
-import java.util.Vector;
+import java.util.TreeMap;
 
 import org.cybergarage.net.HostInterface;
 import org.cybergarage.util.Debug;
@@ -91,6 +98,10 @@ import org.cybergarage.util.StringUtil;
 
 public class HTTPPacket 
 {
+	// descriptions, SOAP and GENA messages are a few KB, the length comes from the peer
+	public final static long MAX_CONTENT_LENGTH = 1024 * 1024;
+	private final static int INITIAL_CONTENT_BUFSIZE = 8 * 1024;
+
 	////////////////////////////////////////////////
 	//	Constructor
 	////////////////////////////////////////////////
@@ -147,38 +158,12 @@ public class HTTPPacket
 	//	set
 	////////////////////////////////////////////////
 	
-	private String readLine(BufferedInputStream in)
-	{
-		ByteArrayOutputStream lineBuf = new ByteArrayOutputStream();
-		byte readBuf[] = new byte[1];
-		
- 		try {
- 			int	readLen = in.read(readBuf);
- 			while (0 < readLen) {
- 				if (readBuf[0] == HTTP.LF)
- 					break;
- 				if (readBuf[0] != HTTP.CR) 
- 					lineBuf.write(readBuf[0]);
- 	 			readLen = in.read(readBuf);
-			}
- 		}
- 		catch (InterruptedIOException e) {
- 			//Ignoring warning because it's a way to break the HTTP connecttion
- 			//TODO Create a new level of Logging and log the event
-		}
-		catch (IOException e) {
-			Debug.warning(e);
-		}
-
-		return lineBuf.toString();
-	}
-	
 	protected boolean set(InputStream in, boolean onlyHeaders)
 	{
  		try {
- 			BufferedInputStream reader = new BufferedInputStream(in);
+ 			HTTPInputBuffer reader = new HTTPInputBuffer(in);
 			
-			String firstLine = readLine(reader);
+			String firstLine = reader.readLine();
 			if (firstLine == null || firstLine.length() <= 0)
 				return false;
 			setFirstLine(firstLine);
@@ -192,15 +177,9 @@ public class HTTPPacket
 				//stream, so the code should check the presence of the actual
 				//response in the stream.
 				//skip all header lines
-				String headerLine = readLine(reader);
-				while ((headerLine != null) && (0 < headerLine.length()) ) {
-					HTTPHeader header = new HTTPHeader(headerLine);
-					if (header.hasName() == true)
-						setHeader(header);
-					headerLine = readLine(reader);
-				}
+				readHeaders(reader);
 				//look forward another first line
-				String actualFirstLine = readLine(reader);
+				String actualFirstLine = reader.readLine();
 				if ((actualFirstLine != null) && (0 < actualFirstLine.length()) ) {
 					//this is the actual first line
 					setFirstLine(actualFirstLine);
@@ -209,82 +188,51 @@ public class HTTPPacket
 				}
 			}
 				
-			String headerLine = readLine(reader);
-			while ((headerLine != null) && (0 < headerLine.length()) ) {
-				HTTPHeader header = new HTTPHeader(headerLine);
-				if (header.hasName() == true)
-					setHeader(header);
-				headerLine = readLine(reader);
-			}
+			readHeaders(reader);
 				
 			if (onlyHeaders == true) {
 				setContent("", false);
 				return true;
 			}
 				
-			boolean isChunkedRequest = isChunked();
-				
-			long contentLen = 0;
-			if (isChunkedRequest == true) {
-				try {
-					String chunkSizeLine = readLine(reader);
-					// Thanks for Lee Peik Feng <pflee@users.sourceforge.net> (07/07/05)
-					contentLen = Long.parseLong(new String(chunkSizeLine.getBytes(), 0, chunkSizeLine.length()-2), 16);
-				}
-				catch (Exception e) {};
-			}
-			else
-				contentLen = getContentLength();
-						
-			ByteArrayOutputStream contentBuf = new ByteArrayOutputStream();
-			
-			while (0 < contentLen) {
-				int chunkSize = HTTP.getChunkSize();
-				byte readBuf[] = new byte[chunkSize];
-				long readCnt = 0;
-				while (readCnt < contentLen) {
-					try {
-						// Thanks for Mark Retallack (02/02/05)
-						long bufReadLen = contentLen - readCnt;
-						if (chunkSize < bufReadLen)
-							bufReadLen = chunkSize;
-						int readLen = reader.read(readBuf, 0, (int)bufReadLen);
-						if (readLen < 0)
-							break;
-						contentBuf.write(readBuf, 0, readLen);
-						readCnt += readLen;
+			if (isChunked() == true) {
+				ByteArrayOutputStream contentBuf = new ByteArrayOutputStream();
+				long chunkLen = reader.readChunkSize();
+				while (0 < chunkLen) {
+					if (MAX_CONTENT_LENGTH < contentBuf.size() + chunkLen) {
+						Debug.warning("HTTP content over " + MAX_CONTENT_LENGTH + " bytes, dropped");
+						return false;
 					}
-					catch (Exception e)
-					{
-						Debug.warning(e);
+					if (reader.readTo(contentBuf, chunkLen) < chunkLen)
 						break;
-					}
-				}
-				if (isChunkedRequest == true) {
 					// skip CRLF
-					long skipLen = 0;
-					do {
-						long skipCnt = reader.skip(HTTP.CRLF.length() - skipLen);
-						if (skipCnt < 0)
-							break;
-						skipLen += skipCnt;
-					} while (skipLen < HTTP.CRLF.length());
-					// read next chunk size
-					try {
-						String chunkSizeLine = readLine(reader);
-						// Thanks for Lee Peik Feng <pflee@users.sourceforge.net> (07/07/05)
-						contentLen = Long.parseLong(new String(chunkSizeLine.getBytes(), 0, chunkSizeLine.length()-2), 16);
-					}
-					catch (Exception e) {
-						contentLen = 0;
-					};
+					reader.skipLine();
+					chunkLen = reader.readChunkSize();
 				}
-				else
-					contentLen = 0;
+				setContent(contentBuf.toByteArray(), false);
+				return true;
 			}
 
+			long contentLen = getContentLength();
+			if (contentLen <= 0) {
+				setContent(new byte[0], false);
+				return true;
+			}
+			if (MAX_CONTENT_LENGTH < contentLen) {
+				Debug.warning("HTTP content of " + contentLen + " bytes over " + MAX_CONTENT_LENGTH + ", dropped");
+				return false;
+			}
+			// Thanks for Mark Retallack (02/02/05)
+			// read exactly the content length, the buffer grows with the bytes that actually arrive
+			ByteArrayOutputStream contentBuf = new ByteArrayOutputStream((int)Math.min(contentLen, INITIAL_CONTENT_BUFSIZE));
+			reader.readTo(contentBuf, contentLen);
 			setContent(contentBuf.toByteArray(), false);
  		}
+ 		catch (InterruptedIOException e) {
+ 			//Ignoring warning because it's a way to break the HTTP connecttion
+ 			//TODO Create a new level of Logging and log the event
+ 			return false;
+		}
 		catch (Exception e) {
 			Debug.warning(e);
 			return false;
@@ -293,6 +241,17 @@ public class HTTPPacket
 		return true;
 	}
 
+	private void readHeaders(HTTPInputBuffer reader) throws IOException
+	{
+		String headerLine = reader.readLine();
+		while ((headerLine != null) && (0 < headerLine.length()) ) {
+			HTTPHeader header = new HTTPHeader(headerLine);
+			if (header.hasName() == true)
+				setHeader(header);
+			headerLine = reader.readLine();
+		}
+	}
+
 	protected boolean set(InputStream in)
 	{
 		return set(in, false);
@@ -363,7 +322,9 @@ public class HTTPPacket
 	//	Header
 	////////////////////////////////////////////////
 
-	private Vector httpHeaderList = new Vector();
+	// headers in arrival order, and the first header of each name by case-insensitive name
+	private ArrayList<HTTPHeader> httpHeaderList = new ArrayList<HTTPHeader>();
+	private TreeMap<String, HTTPHeader> httpHeaderMap = new TreeMap<String, HTTPHeader>(String.CASE_INSENSITIVE_ORDER);
 	
 	public int getNHeaders()
 	{
@@ -373,35 +334,32 @@ public class HTTPPacket
 	public void addHeader(HTTPHeader header)
 	{
 		httpHeaderList.add(header);
+		if (httpHeaderMap.containsKey(header.getName()) == false)
+			httpHeaderMap.put(header.getName(), header);
 	}
 
 	public void addHeader(String name, String value)
 	{
 		HTTPHeader header = new HTTPHeader(name, value);
-		httpHeaderList.add(header);
+		addHeader(header);
 	}
 
 	public HTTPHeader getHeader(int n)
 	{
-		return (HTTPHeader)httpHeaderList.get(n);
+		return httpHeaderList.get(n);
 	}
 	
 	public HTTPHeader getHeader(String name)
 	{
-		int nHeaders = getNHeaders();
-		for (int n=0; n<nHeaders; n++) {
-			HTTPHeader header = getHeader(n);
-			String headerName = header.getName();
-			if (headerName.equalsIgnoreCase(name) == true)
-				return header;			
-		}
-		return null;
+		if (name == null)
+			return null;
+		return httpHeaderMap.get(name);
 	}
 
 	public void clearHeaders()
 	{
 		httpHeaderList.clear();
-		httpHeaderList = new Vector();
+		httpHeaderMap.clear();
 	}
 	
 	public boolean hasHeader(String name)
@@ -14,6 +14,15 @@
 *		- Improved the HTTP server using multithreading.
 *	08/27/04
 *		- Changed accept() to set a default timeout, HTTP.DEFAULT_TIMEOUT, to the socket.
+*	10/18/26
+*		- Changed run() to hand the accepted sockets to a bounded pool of worker threads
+*		  instead of starting a thread per connection. Connections over the limit are
+*		  closed at once, idle keep-alive connections are closed after a short timeout.
+*		- Removed the Thread.yield() from the accept loop, which now ends once the
+*		  server socket is closed instead of handing null sockets to new threads.
+*		- Changed performRequestListener() to iterate the listener snapshot of ListenerList.
+*		- Changed accept() to throw the accept failures, run() backs off on them instead
+*		  of retrying at once, e.g. while the process is out of file descriptors.
 *	
 ******************************************************************/
 
@@ -23,6 +32,13 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.cybergarage.util.Debug;
 import org.cybergarage.util.ListenerList;
@@ -55,6 +71,40 @@ public class HTTPServer implements Runnable
 	 * @since 1.8
 	 */
 	public final static int DEFAULT_TIMEOUT = DEFAULT_PORT * 1000;
+
+	/**
+	 * Default timeout of a single read while receiving a request
+	 * @since 1.8
+	 */
+	public final static int DEFAULT_READ_TIMEOUT = 10 * 1000;
+
+	/**
+	 * Default time a keep-alive connection may stay idle between two requests
+	 * @since 1.8
+	 */
+	public final static int DEFAULT_KEEP_ALIVE_TIMEOUT = 5 * 1000;
+
+	/**
+	 * Default number of requests served on one keep-alive connection
+	 * @since 1.8
+	 */
+	public final static int DEFAULT_KEEP_ALIVE_REQUESTS = 100;
+
+	/**
+	 * Default number of connections served at the same time
+	 * @since 1.8
+	 */
+	public final static int DEFAULT_MAX_CONNECTIONS = 4;
+
+	/**
+	 * Default number of accepted connections waiting for a free worker
+	 * @since 1.8
+	 */
+	public final static int DEFAULT_MAX_PENDING_CONNECTIONS = 16;
+
+	// wait after a failed accept(), doubled on every failure in a row
+	private final static long MIN_ACCEPT_BACKOFF = 10;
+	private final static long MAX_ACCEPT_BACKOFF = 1000;
 	
 	public static String getName()
 	{
@@ -84,7 +134,11 @@ public class HTTPServer implements Runnable
 	 * Store the current TCP timeout value
 	 * The variable should be accessed by getter and setter metho
 	 */
-	protected int timeout = DEFAULT_TIMEOUT;
+	protected int timeout = DEFAULT_READ_TIMEOUT;
+	private int keepAliveTimeout = DEFAULT_KEEP_ALIVE_TIMEOUT;
+	private int keepAliveRequests = DEFAULT_KEEP_ALIVE_REQUESTS;
+	private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+	private int maxPendingConnections = DEFAULT_MAX_PENDING_CONNECTIONS;
 	
 	public ServerSocket getServerSock()
 	{
@@ -126,6 +180,36 @@ public class HTTPServer implements Runnable
 		this.timeout = timeout;
 	}
 
+	public synchronized int getKeepAliveTimeout() {
+		return keepAliveTimeout;
+	}
+
+	public synchronized void setKeepAliveTimeout(int timeout) {
+		this.keepAliveTimeout = timeout;
+	}
+
+	public synchronized int getKeepAliveRequests() {
+		return keepAliveRequests;
+	}
+
+	public synchronized void setKeepAliveRequests(int requests) {
+		this.keepAliveRequests = requests;
+	}
+
+	/**
+	 * Set the connections served at the same time and the ones waiting for a worker,
+	 * takes effect on the next start()
+	 * @since 1.8
+	 */
+	public synchronized void setMaxConnections(int maxConnections, int maxPendingConnections) {
+		this.maxConnections = maxConnections;
+		this.maxPendingConnections = maxPendingConnections;
+	}
+
+	public synchronized int getMaxConnections() {
+		return maxConnections;
+	}
+
 	public boolean open(InetAddress addr,int port){
 		if (serverSock != null)
 			return true;
@@ -169,18 +253,21 @@ public class HTTPServer implements Runnable
 		return true;
 	}
 
-	public Socket accept()
+	// Returns null when the server socket is not open.
+	public Socket accept() throws IOException
 	{
+		ServerSocket serverSock = this.serverSock;
 		if (serverSock == null)
 			return null;
+		Socket sock = serverSock.accept();
 		try {
-			Socket sock = serverSock.accept();
 			sock.setSoTimeout(getTimeout());
-			return sock;
 		}
-		catch (Exception e) {
-			return null;
+		catch (IOException e) {
+			closeSocket(sock);
+			throw e;
 		}
+		return sock;
 	}
 
 	public boolean isOpened()
@@ -206,9 +293,8 @@ public class HTTPServer implements Runnable
 
 	public void performRequestListener(HTTPRequest httpReq)
 	{
-		int listenerSize = httpRequestListenerList.size();
-		for (int n=0; n<listenerSize; n++) {
-			HTTPRequestListener listener = (HTTPRequestListener)httpRequestListenerList.get(n);
+		for (Object obj : httpRequestListenerList) {
+			HTTPRequestListener listener = (HTTPRequestListener)obj;
 			listener.httpRequestRecieved(httpReq);
 		}
 	}		
@@ -218,6 +304,7 @@ public class HTTPServer implements Runnable
 	////////////////////////////////////////////////
 
 	private Thread httpServerThread = null;
+	private ThreadPoolExecutor workerPool = null;
 		
 	public void run()
 	{
@@ -225,37 +312,86 @@ public class HTTPServer implements Runnable
 			return;
 			
 		Thread thisThread = Thread.currentThread();
+		ThreadPoolExecutor pool = workerPool;
 		
+		long backoff = MIN_ACCEPT_BACKOFF;
 		while (httpServerThread == thisThread) {
-			Thread.yield();
 			Socket sock;
 			try {
-				Debug.message("accept ...");
 				sock = accept();
-				if (sock != null)
-					Debug.message("sock = " + sock.getRemoteSocketAddress());
 			}
-			catch (Exception e){
+			catch (IOException e) {
+				ServerSocket serverSock = this.serverSock;
+				// closed by close()
+				if (serverSock == null || serverSock.isClosed() == true)
+					break;
 				Debug.warning(e);
+				try {
+					Thread.sleep(backoff);
+				}
+				catch (InterruptedException ie) {
+					break;
+				}
+				backoff = Math.min(2 * backoff, MAX_ACCEPT_BACKOFF);
+				continue;
+			}
+			if (sock == null)
 				break;
+			backoff = MIN_ACCEPT_BACKOFF;
+			Debug.message("sock = " + sock.getRemoteSocketAddress());
+			try {
+				pool.execute(new HTTPServerThread(this, sock));
+			}
+			catch (RejectedExecutionException e) {
+				Debug.message("too many connections, closing " + sock.getRemoteSocketAddress());
+				closeSocket(sock);
 			}
-			HTTPServerThread httpServThread = new HTTPServerThread(this, sock);
-			httpServThread.start(); 
-			Debug.message("httpServThread ...");
 		}
 	}
+
+	private static void closeSocket(Socket sock)
+	{
+		try {
+			sock.close();
+		}
+		catch (IOException e) {}
+	}
 	
-	public boolean start(){
+	public synchronized boolean start(){
 		StringBuffer name = new StringBuffer("Cyber.HTTPServer/");
 		name.append(serverSock.getLocalSocketAddress());
+		workerPool = new ThreadPoolExecutor(maxConnections, maxConnections, 
+				DEFAULT_KEEP_ALIVE_TIMEOUT, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, maxPendingConnections)),
+				new WorkerThreadFactory());
+		workerPool.allowCoreThreadTimeOut(true);
 		httpServerThread = new Thread(this,name.toString());
 		httpServerThread.start();
 		return true;
 	}
 	
-	public boolean stop()
+	public synchronized boolean stop()
 	{
 		httpServerThread = null;
+		if (workerPool != null) {
+			// connections in progress are served, the ones still waiting are dropped
+			workerPool.shutdown();
+			ArrayList<Runnable> pendingList = new ArrayList<Runnable>();
+			workerPool.getQueue().drainTo(pendingList);
+			for (Runnable pending : pendingList)
+				((HTTPServerThread)pending).close();
+			workerPool = null;
+		}
 		return true;
 	}
+
+	private static class WorkerThreadFactory implements ThreadFactory
+	{
+		private final AtomicInteger threadCnt = new AtomicInteger();
+
+		public Thread newThread(Runnable r)
+		{
+			return new Thread(r, "Cyber.HTTPServerThread-" + threadCnt.incrementAndGet());
+		}
+	}
 }
@@ -10,14 +10,19 @@
 *
 *	10/10/03
 *		- first revision.
+*	10/18/26
+*		- Changed to a Runnable executed by the worker pool of HTTPServer.
+*		- Changed run() to limit the requests on a keep-alive connection and
+*		  to close it when idle for HTTPServer::getKeepAliveTimeout().
 *	
 ******************************************************************/
 
 package org.cybergarage.http;
 
 import java.net.Socket;
+import java.net.SocketException;
 
-public class HTTPServerThread extends Thread
+public class HTTPServerThread implements Runnable
 {
 	private HTTPServer httpServer;
 	private Socket sock;
@@ -28,7 +33,6 @@ public class HTTPServerThread extends Thread
 	
 	public HTTPServerThread(HTTPServer httpServer, Socket sock)
 	{
-        super("Cyber.HTTPServerThread");
 		this.httpServer = httpServer;
 		this.sock = sock;
 	}
@@ -42,13 +46,37 @@ public class HTTPServerThread extends Thread
 		HTTPSocket httpSock = new HTTPSocket(sock);
 		if (httpSock.open() == false)
 			return;
+		int keepAliveRequests = httpServer.getKeepAliveRequests();
+		int keepAliveTimeout = httpServer.getKeepAliveTimeout();
 		HTTPRequest httpReq = new HTTPRequest();
 		httpReq.setSocket(httpSock);
+		int reqCnt = 0;
 		while (httpReq.read() == true) {
 			httpServer.performRequestListener(httpReq);
-			if (httpReq.isKeepAlive() == false)
+			reqCnt++;
+			if (httpReq.isKeepAlive() == false || keepAliveRequests <= reqCnt)
 				break;
+			try {
+				// waits for the next request no longer than the keep-alive timeout
+				sock.setSoTimeout(keepAliveTimeout);
+			}
+			catch (SocketException e) {
+				break;
+			}
 		}
 		httpSock.close();
 	}
+
+	////////////////////////////////////////////////
+	//	close	
+	////////////////////////////////////////////////
+
+	// Drops a connection that was never served.
+	public void close()
+	{
+		try {
+			sock.close();
+		}
+		catch (Exception e) {}
+	}
 }
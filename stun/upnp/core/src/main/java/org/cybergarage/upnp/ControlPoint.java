@@ -56,6 +56,10 @@
 *		- Changed addDevice() to use Parser::parse(URL).
 *	04/12/06
 *		- Added setUserData() and getUserData() to set a user original data object.
+*	10/18/26
+*		- Changed the perform*Listener() methods to iterate the listener snapshot of ListenerList.
+*		- Changed addDevice(SSDPPacket) to fetch the descriptions of new devices on a
+*		  small worker pool, not on the thread that receives the SSDP packets.
 *
 *******************************************************************/
 
@@ -64,6 +68,13 @@ package org.cybergarage.upnp;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.HashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.cybergarage.http.HTTPRequest;
 import org.cybergarage.http.HTTPRequestListener;
@@ -101,6 +112,9 @@ public class ControlPoint implements HTTPRequestListener
 	private final static int DEFAULT_EVENTSUB_PORT = 8058;
 	private final static int DEFAULT_SSDP_PORT = 8008;
 	private final static int DEFAULT_EXPIRED_DEVICE_MONITORING_INTERVAL = 60;
+	private final static int DEFAULT_DESCRIPTION_THREADS = 2;
+	private final static int DEFAULT_MAX_PENDING_DESCRIPTIONS = 16;
+	private final static long DEFAULT_DESCRIPTION_THREAD_IDLE = 60 * 1000;
 	
 	private final static String DEFAULT_EVENTSUB_URI = "/evetSub";
 	
@@ -239,29 +253,105 @@ public class ControlPoint implements HTTPRequestListener
 		devNodeList.add(rootNode);
 	}
 
-	private synchronized void addDevice(SSDPPacket ssdpPacket)
+	private void addDevice(SSDPPacket ssdpPacket)
 	{
-		if (ssdpPacket.isRootDevice() == false)
+		if (isSearchTarget(ssdpPacket) == false)
 			return;
 			
 		String usn = ssdpPacket.getUSN();
 		String udn = USN.getUDN(usn);
-		Device dev = getDevice(udn);
-		if (dev != null) {
-			dev.setSSDPPacket(ssdpPacket);
-			return;
+		synchronized (this) {
+			Device dev = getDevice(udn);
+			if (dev != null) {
+				dev.setSSDPPacket(ssdpPacket);
+				return;
+			}
 		}
 		
-		String location = ssdpPacket.getLocation();
+		fetchDevice(ssdpPacket);
+	}
+
+	////////////////////////////////////////////////
+	//	Device description
+	////////////////////////////////////////////////
+
+	// fetches the descriptions of new devices, the SSDP packets are received on one shared thread
+	private ThreadPoolExecutor descriptionPool = null;
+	// locations being fetched, a device announces itself several times
+	private final HashSet<String> pendingLocationSet = new HashSet<String>();
+
+	private void startDescriptionPool()
+	{
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(DEFAULT_DESCRIPTION_THREADS, DEFAULT_DESCRIPTION_THREADS,
+				DEFAULT_DESCRIPTION_THREAD_IDLE, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(DEFAULT_MAX_PENDING_DESCRIPTIONS),
+				new DescriptionThreadFactory());
+		pool.allowCoreThreadTimeOut(true);
+		synchronized (pendingLocationSet) {
+			descriptionPool = pool;
+		}
+	}
+
+	private void stopDescriptionPool()
+	{
+		ThreadPoolExecutor pool;
+		synchronized (pendingLocationSet) {
+			pool = descriptionPool;
+			descriptionPool = null;
+			pendingLocationSet.clear();
+		}
+		// fetches in progress end on their own timeouts
+		if (pool != null)
+			pool.shutdownNow();
+	}
+
+	private void fetchDevice(final SSDPPacket ssdpPacket)
+	{
+		final String location = ssdpPacket.getLocation();
+		if (location == null || location.length() <= 0)
+			return;
+		synchronized (pendingLocationSet) {
+			if (descriptionPool == null || pendingLocationSet.add(location) == false)
+				return;
+			try {
+				descriptionPool.execute(new Runnable() {
+					public void run()
+					{
+						try {
+							addDevice(ssdpPacket, location);
+						}
+						finally {
+							synchronized (pendingLocationSet) {
+								pendingLocationSet.remove(location);
+							}
+						}
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				pendingLocationSet.remove(location);
+				Debug.message("too many device descriptions pending, dropping " + location);
+			}
+		}
+	}
+
+	private void addDevice(SSDPPacket ssdpPacket, String location)
+	{
 		try {	
 			URL locationUrl = new URL(location);
 			Parser parser = UPnP.getXMLParser();
 			Node rootNode = parser.parse(locationUrl);
-			Device rootDev = getDevice(rootNode);
-			if (rootDev == null)
-				return;
-			rootDev.setSSDPPacket(ssdpPacket);
-			addDevice(rootNode);
+			Device rootDev;
+			synchronized (this) {
+				rootDev = getDevice(rootNode);
+				if (rootDev == null)
+					return;
+				// added meanwhile from another location
+				if (getDevice(rootDev.getUDN()) != null)
+					return;
+				rootDev.setSSDPPacket(ssdpPacket);
+				addDevice(rootNode);
+			}
 
 			// Thanks for Oliver Newell (2004/10/16)
 			// After node is added, invoke the AddDeviceListener to notify high-level 
@@ -280,6 +370,34 @@ public class ControlPoint implements HTTPRequestListener
 		}
 	}
 
+	private static class DescriptionThreadFactory implements ThreadFactory
+	{
+		private final AtomicInteger threadCnt = new AtomicInteger();
+
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, "Cyber.ControlPoint.Description-" + threadCnt.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+	/**
+	 * Adds a root device from a description kept by the application, without
+	 * SSDP and without notifying the device change listeners.
+	 */
+	public synchronized Device addDevice(String location, String description) throws ParserException
+	{
+		Parser parser = UPnP.getXMLParser();
+		Node rootNode = parser.parse(description);
+		Device rootDev = getDevice(rootNode);
+		if (rootDev == null)
+			return null;
+		rootDev.setLocation(location);
+		addDevice(rootNode);
+		return rootDev;
+	}
+
 	private Device getDevice(Node rootNode)
 	{
 		if (rootNode == null)
@@ -421,9 +539,8 @@ public class ControlPoint implements HTTPRequestListener
 
 	public void performNotifyListener(SSDPPacket ssdpPacket)
 	{
-		int listenerSize = deviceNotifyListenerList.size();
-		for (int n=0; n<listenerSize; n++) {
-			NotifyListener listener = (NotifyListener)deviceNotifyListenerList.get(n);
+		for (Object obj : deviceNotifyListenerList) {
+			NotifyListener listener = (NotifyListener)obj;
 			try{
 				listener.deviceNotifyReceived(ssdpPacket);
 			}catch(Exception e){
@@ -450,9 +567,8 @@ public class ControlPoint implements HTTPRequestListener
 
 	public void performSearchResponseListener(SSDPPacket ssdpPacket)
 	{
-		int listenerSize = deviceSearchResponseListenerList.size();
-		for (int n=0; n<listenerSize; n++) {
-			SearchResponseListener listener = (SearchResponseListener)deviceSearchResponseListenerList.get(n);
+		for (Object obj : deviceSearchResponseListenerList) {
+			SearchResponseListener listener = (SearchResponseListener)obj;
 			try{
 				listener.deviceSearchResponseReceived(ssdpPacket);
 			}catch(Exception e){
@@ -484,41 +600,75 @@ public class ControlPoint implements HTTPRequestListener
 
 	public void performAddDeviceListener( Device dev )
 	{
-		int listenerSize = deviceChangeListenerList.size();
-		for (int n=0; n<listenerSize; n++) {
-			DeviceChangeListener listener = (DeviceChangeListener)deviceChangeListenerList.get(n);
+		for (Object obj : deviceChangeListenerList) {
+			DeviceChangeListener listener = (DeviceChangeListener)obj;
 			listener.deviceAdded( dev );
 		}
 	}
 
 	public void performRemoveDeviceListener( Device dev )
 	{
-		int listenerSize = deviceChangeListenerList.size();
-		for (int n=0; n<listenerSize; n++) {
-			DeviceChangeListener listener = (DeviceChangeListener)deviceChangeListenerList.get(n);
+		for (Object obj : deviceChangeListenerList) {
+			DeviceChangeListener listener = (DeviceChangeListener)obj;
 			listener.deviceRemoved( dev );
 		}
 	}
 		
+	////////////////////////////////////////////////
+	//	Search Filter
+	////////////////////////////////////////////////
+
+	// ST/NT values whose device description is fetched, null for every root device
+	private String[] searchFilter = null;
+
+	public void setSearchFilter(String[] targets)
+	{
+		searchFilter = targets;
+	}
+
+	public String[] getSearchFilter()
+	{
+		return searchFilter;
+	}
+
+	public boolean isSearchFilterMode()
+	{
+		return (searchFilter != null) ? true : false;
+	}
+
+	private boolean isSearchTarget(SSDPPacket packet)
+	{
+		String[] filter = searchFilter;
+		if (filter == null)
+			return packet.isRootDevice();
+		// search responses carry ST, notifies carry NT
+		String st = packet.getST();
+		String nt = packet.getNT();
+		for (int n=0; n<filter.length; n++) {
+			if (filter[n].equals(st) == true || filter[n].equals(nt) == true)
+				return true;
+		}
+		return false;
+	}
+
 	////////////////////////////////////////////////
 	//	SSDPPacket
 	////////////////////////////////////////////////
 	
 	public void notifyReceived(SSDPPacket packet)
 	{
-		if (packet.isRootDevice() == true) {
-			if (packet.isAlive() == true){
+		if (packet.isAlive() == true){
+			if (isSearchTarget(packet) == true)
 				addDevice(packet);
-			}else if (packet.isByeBye() == true){ 
-				removeDevice(packet);
-			}
+		}else if (packet.isByeBye() == true && packet.isRootDevice() == true){ 
+			removeDevice(packet);
 		}
 		performNotifyListener(packet);
 	}
 
 	public void searchResponseReceived(SSDPPacket packet)
 	{
-		if (packet.isRootDevice() == true)
+		if (isSearchTarget(packet) == true)
 			addDevice(packet);
 		performSearchResponseListener(packet);
 	}
@@ -546,6 +696,12 @@ public class ControlPoint implements HTTPRequestListener
 		ssdpSearchResponseSocketList.post(msReq);
 	}
 
+	public void search(String[] targets, int mx)
+	{
+		for (int n=0; n<targets.length; n++)
+			search(targets[n], mx);
+	}
+
 	public void search(String target)
 	{
 		search(target, SSDP.DEFAULT_MSEARCH_MX);
@@ -611,9 +767,8 @@ public class ControlPoint implements HTTPRequestListener
 
 	public void performEventListener(String uuid, long seq, String name, String value)
 	{
-		int listenerSize = eventListenerList.size();
-		for (int n=0; n<listenerSize; n++) {
-			EventListener listener = (EventListener)eventListenerList.get(n);
+		for (Object obj : eventListenerList) {
+			EventListener listener = (EventListener)obj;
 			listener.eventNotifyReceived(uuid, seq, name, value);
 		}
 	}
@@ -817,6 +972,11 @@ public class ControlPoint implements HTTPRequestListener
 	////////////////////////////////////////////////
 
 	public boolean start(String target, int mx)
+	{
+		return start(new String[] {target}, mx);
+	}
+
+	public boolean start(String[] targets, int mx)
 	{
 		stop();
 		
@@ -837,6 +997,8 @@ public class ControlPoint implements HTTPRequestListener
 		httpServerList.addRequestListener(this);
 		httpServerList.start();
 		
+		startDescriptionPool();
+		
 		////////////////////////////////////////
 		// Notify Socket
 		////////////////////////////////////////
@@ -868,7 +1030,7 @@ public class ControlPoint implements HTTPRequestListener
 		// search root devices
 		////////////////////////////////////////
 		
-		search(target, mx);
+		search(targets, mx);
 		
 		////////////////////////////////////////
 		// Disposer
@@ -919,6 +1081,8 @@ public class ControlPoint implements HTTPRequestListener
 		httpServerList.stop();
 		httpServerList.close();
 		httpServerList.clear();
+		
+		stopDescriptionPool();
 			
 		////////////////////////////////////////
 		// Disposer
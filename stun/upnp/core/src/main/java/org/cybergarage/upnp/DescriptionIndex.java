@@ -0,0 +1,137 @@
+/******************************************************************
+*
+*	CyberUPnP for Java
+*
+*	Copyright (C) Satoshi Konno 2002
+*
+*	File: DescriptionIndex.java
+*
+*	Revision;
+*
+*	10/18/26
+*		- first revision.
+*		- Hash indexes over a device description or a SCPD, built once by
+*		  walking the node tree and rebuilt after the tree changes.
+*
+******************************************************************/
+
+package org.cybergarage.upnp;
+
+import java.util.HashMap;
+
+import org.cybergarage.xml.Node;
+
+public final class DescriptionIndex
+{
+	private final Node treeRoot;
+	private final int treeModCount;
+	// embedded device nodes by UDN, device type and friendly name
+	private final HashMap<String, Node> deviceNodes = new HashMap<String, Node>();
+	// service nodes of the device and its embedded devices by service type and service id
+	private final HashMap<String, Node> serviceNodes = new HashMap<String, Node>();
+	// action nodes by action name
+	private final HashMap<String, Node> actionNodes = new HashMap<String, Node>();
+
+	private DescriptionIndex(Node node)
+	{
+		treeRoot = node.getTreeRoot();
+		treeModCount = treeRoot.getTreeModCount();
+	}
+
+	////////////////////////////////////////////////
+	//	Build
+	////////////////////////////////////////////////
+
+	// Same order as the tree walks of Device::getDevice() and Device::getService(), the first match wins.
+	public static DescriptionIndex forDevice(Node devNode)
+	{
+		DescriptionIndex index = new DescriptionIndex(devNode);
+		index.addServices(devNode);
+		index.addDevices(devNode);
+		return index;
+	}
+
+	public static DescriptionIndex forSCPD(Node scpdNode)
+	{
+		DescriptionIndex index = new DescriptionIndex(scpdNode);
+		Node actionListNode = scpdNode.getNode(ActionList.ELEM_NAME);
+		if (actionListNode == null)
+			return index;
+		int nNode = actionListNode.getNNodes();
+		for (int n=0; n<nNode; n++) {
+			Node node = actionListNode.getNode(n);
+			if (Action.isActionNode(node) == false)
+				continue;
+			put(index.actionNodes, new Action(null, node).getName(), node);
+		}
+		return index;
+	}
+
+	private void addDevices(Node devNode)
+	{
+		Node devListNode = devNode.getNode(DeviceList.ELEM_NAME);
+		if (devListNode == null)
+			return;
+		int nNode = devListNode.getNNodes();
+		for (int n=0; n<nNode; n++) {
+			Node node = devListNode.getNode(n);
+			if (Device.isDeviceNode(node) == false)
+				continue;
+			Device dev = new Device(node);
+			put(deviceNodes, dev.getUDN(), node);
+			put(deviceNodes, dev.getFriendlyName(), node);
+			put(deviceNodes, dev.getDeviceType(), node);
+			addServices(node);
+			addDevices(node);
+		}
+	}
+
+	private void addServices(Node devNode)
+	{
+		Node serviceListNode = devNode.getNode(ServiceList.ELEM_NAME);
+		if (serviceListNode == null)
+			return;
+		int nNode = serviceListNode.getNNodes();
+		for (int n=0; n<nNode; n++) {
+			Node node = serviceListNode.getNode(n);
+			if (Service.isServiceNode(node) == false)
+				continue;
+			Service service = new Service(node);
+			put(serviceNodes, service.getServiceType(), node);
+			put(serviceNodes, service.getServiceID(), node);
+		}
+	}
+
+	private static void put(HashMap<String, Node> nodes, String key, Node node)
+	{
+		if (key == null || key.length() <= 0)
+			return;
+		if (nodes.containsKey(key) == false)
+			nodes.put(key, node);
+	}
+
+	////////////////////////////////////////////////
+	//	Lookup
+	////////////////////////////////////////////////
+
+	public boolean isValid(Node node)
+	{
+		Node root = node.getTreeRoot();
+		return root == treeRoot && root.getTreeModCount() == treeModCount;
+	}
+
+	public Node getDeviceNode(String name)
+	{
+		return deviceNodes.get(name);
+	}
+
+	public Node getServiceNode(String name)
+	{
+		return serviceNodes.get(name);
+	}
+
+	public Node getActionNode(String name)
+	{
+		return actionNodes.get(name);
+	}
+}
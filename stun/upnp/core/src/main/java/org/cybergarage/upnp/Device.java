@@ -91,6 +91,9 @@
 *		- Added setUserData() and getUserData() to set a user original data object.
 *	03/29/08
 *		- Added isRunning() to know whether the device is running.
+*	10/18/26
+*		- Changed getDevice() and getService() to look up a DescriptionIndex first
+*		  and walk the description tree only when the name is not a full key.
 * 
 ******************************************************************/
 
@@ -474,6 +477,19 @@ public class Device implements org.cybergarage.http.HTTPRequestListener, SearchL
 		}
 		return userData;
 	}
+
+	// Hash lookup for getDevice() and getService(), rebuilt when the description tree has changed.
+	private DescriptionIndex getDescriptionIndex()
+	{
+		Node node = getDeviceNode();
+		DeviceData data = getDeviceData();
+		DescriptionIndex index = data.getDescriptionIndex();
+		if (index == null || index.isValid(node) == false) {
+			index = DescriptionIndex.forDevice(node);
+			data.setDescriptionIndex(index);
+		}
+		return index;
+	}
 	
 	////////////////////////////////////////////////
 	//	Description
@@ -976,6 +992,16 @@ public class Device implements org.cybergarage.http.HTTPRequestListener, SearchL
 	}
 	
 	public Device getDevice(String name)
+	{
+		if (name == null)
+			return null;
+		Node devNode = getDescriptionIndex().getDeviceNode(name);
+		if (devNode != null)
+			return new Device(devNode);
+		return findDevice(name);
+	}
+
+	private Device findDevice(String name)
 	{
 		DeviceList devList = getDeviceList();
 		int devCnt = devList.size();
@@ -983,7 +1009,7 @@ public class Device implements org.cybergarage.http.HTTPRequestListener, SearchL
 			Device dev = devList.getDevice(n);
 			if (dev.isDevice(name) == true)
 				return dev;
-			Device cdev = dev.getDevice(name);
+			Device cdev = dev.findDevice(name);
 			if (cdev != null)
 				return cdev;
 		}
@@ -1027,6 +1053,16 @@ public class Device implements org.cybergarage.http.HTTPRequestListener, SearchL
 	}
 
 	public Service getService(String name)
+	{
+		if (name == null)
+			return null;
+		Node serviceNode = getDescriptionIndex().getServiceNode(name);
+		if (serviceNode != null)
+			return new Service(serviceNode);
+		return findService(name);
+	}
+
+	private Service findService(String name)
 	{
 		ServiceList serviceList = getServiceList();
 		int serviceCnt = serviceList.size();
@@ -1040,7 +1076,7 @@ public class Device implements org.cybergarage.http.HTTPRequestListener, SearchL
 		int devCnt = devList.size();
 		for (int n=0; n<devCnt; n++) {
 			Device dev = devList.getDevice(n);
-			Service service = dev.getService(name);
+			Service service = dev.findService(name);
 			if (service != null)
 				return service;
 		}
@@ -64,6 +64,8 @@
 *		- Changed notify() to continue when the subscriber is null.
 *	04/12/06
 *		- Added setUserData() and getUserData() to set a user original data object.
+*	10/18/26
+*		- Changed getAction() to look up a DescriptionIndex of the SCPD.
 *
 ******************************************************************/
 
@@ -462,17 +464,21 @@ public class Service
 
 	public Action getAction(String actionName)
 	{
-		ActionList actionList = getActionList();
-		int nActions = actionList.size();
-		for (int n=0; n<nActions; n++) {
-			Action action = actionList.getAction(n);
-			String name = action.getName();
-			if (name == null)
-				continue;
-			if (name.equals(actionName) == true)
-				return action;
+		if (actionName == null)
+			return null;
+		Node scpdNode = getSCPDNode();
+		if (scpdNode == null)
+			return null;
+		ServiceData data = getServiceData();
+		DescriptionIndex index = data.getActionIndex();
+		if (index == null || index.isValid(scpdNode) == false) {
+			index = DescriptionIndex.forSCPD(scpdNode);
+			data.setActionIndex(index);
 		}
-		return null;
+		Node actionNode = index.getActionNode(actionName);
+		if (actionNode == null)
+			return null;
+		return new Action(serviceNode, actionNode);
 	}
 	
 	public void addAction(Action a){
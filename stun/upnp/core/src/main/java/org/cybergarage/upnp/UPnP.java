@@ -20,6 +20,8 @@
 *		- Added some functios about time-to-live, and the default value is 4.
 *	05/11/09
 *		- Changed loadDefaultXMLParser() to load org.cybergarage.xml.parser.XmlPullParser at first.
+*	10/18/26
+*		- Changed loadDefaultXMLParser() to load org.cybergarage.xml.parser.StaxParser at first.
 *	
 ******************************************************************/
 
@@ -217,7 +219,7 @@ public class UPnP
 	 * This method loads the default XML Parser using the following behavior:
 	 *  - First if present loads the parsers specified by the system property {@link UPnP#XML_CLASS_PROPERTTY}<br>
 	 *  - Second by a fall-back technique, it tries to load the XMLParser from one<br>
-	 *  of the following classes: {@link JaxpParser}, {@link kXML2Parser}, {@link XercesParser}
+	 *  of the following classes: {@link StaxParser}, {@link XmlPullParser}, {@link JaxpParser}, {@link kXML2Parser}, {@link XercesParser}
 	 * 
 	 * @return {@link Parser} which has been loaded successuflly or null otherwise
 	 * 
@@ -228,6 +230,7 @@ public class UPnP
 		
 		String[] parserClass = new String[]{
 				System.getProperty(XML_CLASS_PROPERTTY),
+				"org.cybergarage.xml.parser.StaxParser",
 				"org.cybergarage.xml.parser.XmlPullParser",
 				"org.cybergarage.xml.parser.JaxpParser",
 				"org.cybergarage.xml.parser.kXML2Parser",
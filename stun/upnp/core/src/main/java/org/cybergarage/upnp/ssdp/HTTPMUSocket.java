@@ -24,18 +24,29 @@
 *		- Changed receive() to throw IOException.
 *	01/10/08
 *		- Changed getLocalAddress() to return a brank string when the ssdpMultiGroup or ssdpMultiIf is null on Android m3-rc37a.
+*	10/18/26
+*		- Changed to receive on a DatagramChannel, which can be registered with SSDPSocketSelector.
+*		- Added getDatagramChannel() and receive(ByteBuffer).
+*		- Changed getSocket() to return the DatagramSocket of the channel.
 *	
 ******************************************************************/
 
 package org.cybergarage.upnp.ssdp;
 
 import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.MulticastSocket;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
 import java.util.Enumeration;
 import java.io.IOException;
 
@@ -53,7 +64,8 @@ public class HTTPMUSocket
 	////////////////////////////////////////////////
 
 	private InetSocketAddress ssdpMultiGroup = null;
-	private MulticastSocket ssdpMultiSock = null;
+	private DatagramChannel ssdpMultiChannel = null;
+	private MembershipKey ssdpMultiKey = null;
 	private NetworkInterface ssdpMultiIf = null;
 	
 	////////////////////////////////////////////////
@@ -109,16 +121,22 @@ public class HTTPMUSocket
 	 * @since 1.8
 	 */
 	public int getLocalPort(){
-		return ssdpMultiSock.getLocalPort();
+		return ssdpMultiChannel.socket().getLocalPort();
 	}
 	
 	/**
 	 * 
-	 * @return the opened {@link MulticastSocket}
+	 * @return the {@link DatagramSocket} of the opened channel
 	 * @since 1.8 
 	 */
-	public MulticastSocket getSocket(){
-		return ssdpMultiSock;
+	public DatagramSocket getSocket(){
+		if (ssdpMultiChannel == null)
+			return null;
+		return ssdpMultiChannel.socket();
+	}
+
+	public DatagramChannel getDatagramChannel(){
+		return ssdpMultiChannel;
 	}
 	
 	
@@ -144,16 +162,21 @@ public class HTTPMUSocket
 	 */
 	public boolean open(String addr,int port, InetAddress bindAddr){
 		try {
-			ssdpMultiSock = new MulticastSocket(null);
-			ssdpMultiSock.setReuseAddress(true);
-			InetSocketAddress bindSockAddr = new InetSocketAddress(port);
-			ssdpMultiSock.bind(bindSockAddr);
 			ssdpMultiGroup = new InetSocketAddress(InetAddress.getByName(addr), port);
 			ssdpMultiIf = NetworkInterface.getByInetAddress(bindAddr);
-			ssdpMultiSock.joinGroup(ssdpMultiGroup, ssdpMultiIf);
+			if (ssdpMultiIf == null)
+				throw new IOException("No interface with the address " + bindAddr);
+			StandardProtocolFamily family = (ssdpMultiGroup.getAddress() instanceof Inet6Address) ? 
+					StandardProtocolFamily.INET6 : StandardProtocolFamily.INET;
+			ssdpMultiChannel = DatagramChannel.open(family);
+			ssdpMultiChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			InetSocketAddress bindSockAddr = new InetSocketAddress(port);
+			ssdpMultiChannel.bind(bindSockAddr);
+			ssdpMultiKey = ssdpMultiChannel.join(ssdpMultiGroup.getAddress(), ssdpMultiIf);
 		}
 		catch (Exception e) {
 			Debug.warning(e);
+			close();
 			return false;
 		}
 		
@@ -172,13 +195,15 @@ public class HTTPMUSocket
 
 	public boolean close()
 	{
-		if (ssdpMultiSock == null)
+		if (ssdpMultiChannel == null)
 			return true;
 			
 		try {
-			ssdpMultiSock.leaveGroup(ssdpMultiGroup, ssdpMultiIf);
-            ssdpMultiSock.close();
-			ssdpMultiSock = null;
+			if (ssdpMultiKey != null)
+				ssdpMultiKey.drop();
+			ssdpMultiKey = null;
+			ssdpMultiChannel.close();
+			ssdpMultiChannel = null;
 		}
 		catch (Exception e) {
 			//Debug.warning(e);
@@ -240,14 +265,24 @@ public class HTTPMUSocket
 
 	public SSDPPacket receive() throws IOException
 	{
-		byte ssdvRecvBuf[] = new byte[SSDP.RECV_MESSAGE_BUFSIZE];
- 		SSDPPacket recvPacket = new SSDPPacket(ssdvRecvBuf, ssdvRecvBuf.length);
-		recvPacket.setLocalAddress(getLocalAddress());
-
 		// Thanks for Kazuyuki Shudo (08/23/07)
-		ssdpMultiSock.receive(recvPacket.getDatagramPacket()); // throws IOException
+		return receive(ByteBuffer.allocate(SSDP.RECV_MESSAGE_BUFSIZE)); // throws IOException
+	}
+
+	// Returns null when the channel is non-blocking and there is no packet waiting.
+	public SSDPPacket receive(ByteBuffer recvBuf) throws IOException
+	{
+		DatagramChannel channel = ssdpMultiChannel;
+		if (channel == null)
+			throw new IOException("Socket closed");
+		recvBuf.clear();
+		SocketAddress remoteAddr = channel.receive(recvBuf);
+		if (remoteAddr == null)
+			return null;
+		recvBuf.flip();
+ 		SSDPPacket recvPacket = new SSDPPacket(recvBuf, remoteAddr);
+		recvPacket.setLocalAddress(getLocalAddress());
 		recvPacket.setTimeStamp(System.currentTimeMillis());
- 		
 		return recvPacket;
 	}
 }
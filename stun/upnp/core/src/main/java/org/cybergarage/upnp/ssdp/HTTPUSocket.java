@@ -18,15 +18,22 @@
 *	01/06/04
 *		- Oliver Newell <olivern@users.sourceforge.net>
 *		- Added to set a current timestamp when the packet are received.
+*	10/18/26
+*		- Changed to send and receive on a DatagramChannel, which can be registered with SSDPSocketSelector.
+*		- Added getDatagramChannel() and receive(ByteBuffer).
 *	
 ******************************************************************/
 
 package org.cybergarage.upnp.ssdp;
 
-import java.net.DatagramPacket;
+import java.io.IOException;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 
 import org.cybergarage.util.Debug;
 
@@ -36,12 +43,19 @@ public class HTTPUSocket
 	//	Member
 	////////////////////////////////////////////////
 
-	private DatagramSocket ssdpUniSock = null;
+	private DatagramChannel ssdpUniChannel = null;
 	//private MulticastSocket ssdpUniSock = null;
 
 	public DatagramSocket getDatagramSocket()
 	{
-		return ssdpUniSock;
+		if (ssdpUniChannel == null)
+			return null;
+		return ssdpUniChannel.socket();
+	}
+
+	public DatagramChannel getDatagramChannel()
+	{
+		return ssdpUniChannel;
 	}
 		
 	////////////////////////////////////////////////
@@ -85,14 +99,14 @@ public class HTTPUSocket
 	 * @since 1.8
 	 */
 	public DatagramSocket getUDPSocket(){
-		return ssdpUniSock;
+		return getDatagramSocket();
 	}	
 	
 	public String getLocalAddress()
 	{
 		if (0 < localAddr.length())
 			return localAddr;
-		return ssdpUniSock.getLocalAddress().getHostAddress();
+		return getDatagramSocket().getLocalAddress().getHostAddress();
 	}
 
 	////////////////////////////////////////////////
@@ -104,7 +118,8 @@ public class HTTPUSocket
 		close();
 		
 		try {
-			ssdpUniSock = new DatagramSocket();
+			ssdpUniChannel = DatagramChannel.open();
+			ssdpUniChannel.bind(null);
 		}
 		catch (Exception e) {
 			Debug.warning(e);
@@ -121,10 +136,12 @@ public class HTTPUSocket
 		try {
 			// Changed to bind the specified address and port for Android v1.6 (2009/10/07)
 			InetSocketAddress bindInetAddr = new InetSocketAddress(InetAddress.getByName(bindAddr), bindPort);
-			ssdpUniSock = new DatagramSocket(bindInetAddr);
+			ssdpUniChannel = DatagramChannel.open();
+			ssdpUniChannel.bind(bindInetAddr);
 		}
 		catch (Exception e) {
 			Debug.warning(e);
+			close();
 			return false;
 		}
 
@@ -154,12 +171,13 @@ public class HTTPUSocket
 		
 		try {
 			InetSocketAddress bindSock = new InetSocketAddress(bindPort);
-			ssdpUniSock = new DatagramSocket(null);
-			ssdpUniSock.setReuseAddress(true);
-			ssdpUniSock.bind(bindSock);
+			ssdpUniChannel = DatagramChannel.open();
+			ssdpUniChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			ssdpUniChannel.bind(bindSock);
 		}
 		catch (Exception e) {
 			//Debug.warning(e);
+			close();
 			return false;
 		}
 		
@@ -172,12 +190,12 @@ public class HTTPUSocket
 
 	public boolean close()
 	{
-		if (ssdpUniSock == null)
+		if (ssdpUniChannel == null)
 			return true;
 			
 		try {
-			ssdpUniSock.close();
-			ssdpUniSock = null;
+			ssdpUniChannel.close();
+			ssdpUniChannel = null;
 		}
 		catch (Exception e) {
 			Debug.warning(e);
@@ -195,12 +213,12 @@ public class HTTPUSocket
 	{
 		 try {
 			InetAddress inetAddr = InetAddress.getByName(addr);
-			DatagramPacket dgmPacket = new DatagramPacket(msg.getBytes(), msg.length(), inetAddr, port);
-			ssdpUniSock.send(dgmPacket);
+			// the channel may be non-blocking, a datagram is still sent whole or not at all
+			ssdpUniChannel.send(ByteBuffer.wrap(msg.getBytes()), new InetSocketAddress(inetAddr, port));
 		}
 		catch (Exception e) {
-			Debug.warning("addr = " +ssdpUniSock.getLocalAddress().getHostName());
-			Debug.warning("port = " + ssdpUniSock.getLocalPort());
+			Debug.warning("addr = " + getDatagramSocket().getLocalAddress().getHostName());
+			Debug.warning("port = " + getDatagramSocket().getLocalPort());
 			Debug.warning(e);
 			return false;
 		}
@@ -213,17 +231,29 @@ public class HTTPUSocket
 
 	public SSDPPacket receive()
 	{
-		byte ssdvRecvBuf[] = new byte[SSDP.RECV_MESSAGE_BUFSIZE];
- 		SSDPPacket recvPacket = new SSDPPacket(ssdvRecvBuf, ssdvRecvBuf.length);
-		recvPacket.setLocalAddress(getLocalAddress());
 		try {
-	 		ssdpUniSock.receive(recvPacket.getDatagramPacket());
-			recvPacket.setTimeStamp(System.currentTimeMillis());
+			return receive(ByteBuffer.allocate(SSDP.RECV_MESSAGE_BUFSIZE));
 		}
 		catch (Exception e) {
 			//Debug.warning(e);
 			return null;
 		}
+	}
+
+	// Returns null when the channel is non-blocking and there is no packet waiting.
+	public SSDPPacket receive(ByteBuffer recvBuf) throws IOException
+	{
+		DatagramChannel channel = ssdpUniChannel;
+		if (channel == null)
+			throw new IOException("Socket closed");
+		recvBuf.clear();
+		SocketAddress remoteAddr = channel.receive(recvBuf);
+		if (remoteAddr == null)
+			return null;
+		recvBuf.flip();
+ 		SSDPPacket recvPacket = new SSDPPacket(recvBuf, remoteAddr);
+		recvPacket.setLocalAddress(getLocalAddress());
+		recvPacket.setTimeStamp(System.currentTimeMillis());
  		return recvPacket;
 	}
 
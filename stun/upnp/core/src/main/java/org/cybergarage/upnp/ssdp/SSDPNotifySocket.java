@@ -24,13 +24,15 @@
 * 		- Changed run() to catch IOException of HTTPMUSocket::receive().
 *	01/31/08
 *		- Changed start() not to abort when the interface infomation is null on Android m3-rc37a.
+*	10/18/26
+*		- Changed start() to register the socket with SSDPSocketSelector instead of starting
+*		  a receive thread, run() is replaced by packetReceived().
 *	
 ******************************************************************/
 
 package org.cybergarage.upnp.ssdp;
 
 import java.net.*;
-import java.io.IOException;
 
 import org.cybergarage.net.*;
 import org.cybergarage.util.*;
@@ -46,7 +48,7 @@ import org.cybergarage.upnp.*;
  * @version 1.8
  *
  */
-public class SSDPNotifySocket extends HTTPMUSocket implements Runnable
+public class SSDPNotifySocket extends HTTPMUSocket implements SSDPSocketSelector.Receiver
 {
 	private boolean useIPv6Address;
 	
@@ -99,66 +101,32 @@ public class SSDPNotifySocket extends HTTPMUSocket implements Runnable
 	}
 
 	////////////////////////////////////////////////
-	//	run	
+	//	packetReceived	
 	////////////////////////////////////////////////
 
-	private Thread deviceNotifyThread = null;
-		
-	public void run()
+	public void packetReceived(SSDPPacket packet)
 	{
-		Thread thisThread = Thread.currentThread();
-		
-		ControlPoint ctrlPoint = getControlPoint();
-		
-		while (deviceNotifyThread == thisThread) {
-			Thread.yield();
-
-			// Thanks for Kazuyuki Shudo (08/23/07)
-			SSDPPacket packet = null;
-			try {
-				packet = receive();
-			}
-			catch (IOException e) { 
-				break;
-			}
-			
-			// Thanks for Mikael Hakman (04/20/05)
-			if (packet == null)
-				continue;
-			
-			// Thanks for Inma (02/20/04)
-			InetAddress maddr = getMulticastInetAddress();
-			InetAddress pmaddr = packet.getHostInetAddress();
-			if (maddr.equals(pmaddr) == false) {
-				Debug.warning("Invalidate Multicast Recieved from IP " + maddr + " on " + pmaddr);
-				continue;
-			}
-			//TODO Must be performed on a different Thread in order to prevent UDP packet losses.
-			if (ctrlPoint != null)
-				ctrlPoint.notifyReceived(packet); 
+		// Thanks for Inma (02/20/04)
+		InetAddress maddr = getMulticastInetAddress();
+		InetAddress pmaddr = packet.getHostInetAddress();
+		if (maddr.equals(pmaddr) == false) {
+			Debug.warning("Invalidate Multicast Recieved from IP " + maddr + " on " + pmaddr);
+			return;
 		}
+		ControlPoint ctrlPoint = getControlPoint();
+		if (ctrlPoint != null)
+			ctrlPoint.notifyReceived(packet); 
 	}
 	
 	public void start(){
-		StringBuffer name = new StringBuffer("Cyber.SSDPNotifySocket/");
-		String localAddr = this.getLocalAddress();
-		// localAddr is null on Android m3-rc37a (01/30/08)
-		if (localAddr != null && 0 < localAddr.length()) {
-			name.append(this.getLocalAddress()).append(':');
-			name.append(this.getLocalPort()).append(" -> ");
-			name.append(this.getMulticastAddress()).append(':');
-			name.append(this.getMulticastPort());
-		}
-		deviceNotifyThread = new Thread(this,name.toString());
-		deviceNotifyThread.start();
+		SSDPSocketSelector.getInstance().register(this);
 	}
 	
 	public void stop()
 	{
+		SSDPSocketSelector.getInstance().unregister(this);
 		// Thanks for Mikael Hakman (04/20/05)
 		close();
-		
-		deviceNotifyThread = null;
 	}
 }
 
@@ -18,12 +18,15 @@
 *	11/19/04
 *		- Theo Beisch <theo.beisch@gmx.de>
 *		- Changed getRemoteAddress() to return the adresss instead of the host name.
+*	10/18/26
+*		- Added a constructor taking the received ByteBuffer.
 *
 ******************************************************************/
 
 package org.cybergarage.upnp.ssdp;
 
 import java.net.*;
+import java.nio.ByteBuffer;
 
 import org.cybergarage.http.*;
 
@@ -39,6 +42,15 @@ public class SSDPPacket
 	{
 		dgmPacket = new DatagramPacket(buf, length);
 	}
+
+	// Copies the remaining bytes of a received buffer, which can then be reused.
+	public SSDPPacket(ByteBuffer recvBuf, SocketAddress remoteAddr)
+	{
+		byte buf[] = new byte[recvBuf.remaining()];
+		recvBuf.get(buf);
+		dgmPacket = new DatagramPacket(buf, buf.length);
+		dgmPacket.setSocketAddress(remoteAddr);
+	}
 
 	////////////////////////////////////////////////
 	//	DatagramPacket
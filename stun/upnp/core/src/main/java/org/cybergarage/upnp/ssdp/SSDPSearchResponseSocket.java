@@ -14,17 +14,17 @@
 *		- Added post() to send a SSDPSearchRequest.
 *	01/31/08
 *		- Changed start() not to abort when the interface infomation is null on Android m3-rc37a.
+*	10/18/26
+*		- Changed start() to register the socket with SSDPSocketSelector instead of starting
+*		  a receive thread, run() is replaced by packetReceived().
 *	
 ******************************************************************/
 
 package org.cybergarage.upnp.ssdp;
 
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-
 import org.cybergarage.upnp.*;
 
-public class SSDPSearchResponseSocket extends HTTPUSocket implements Runnable
+public class SSDPSearchResponseSocket extends HTTPUSocket implements SSDPSocketSelector.Receiver
 {
 	////////////////////////////////////////////////
 	//	Constructor
@@ -58,44 +58,23 @@ public class SSDPSearchResponseSocket extends HTTPUSocket implements Runnable
 	}
 
 	////////////////////////////////////////////////
-	//	run	
+	//	packetReceived	
 	////////////////////////////////////////////////
 
-	private Thread deviceSearchResponseThread = null;
-		
-	public void run()
+	public void packetReceived(SSDPPacket packet)
 	{
-		Thread thisThread = Thread.currentThread();
-		
 		ControlPoint ctrlPoint = getControlPoint();
-
-		while (deviceSearchResponseThread == thisThread) {
-			Thread.yield();
-			SSDPPacket packet = receive();
-			if (packet == null)
-				break;
-			if (ctrlPoint != null)
-				ctrlPoint.searchResponseReceived(packet); 
-		}
+		if (ctrlPoint != null)
+			ctrlPoint.searchResponseReceived(packet); 
 	}
 	
 	public void start()	{
-
-		StringBuffer name = new StringBuffer("Cyber.SSDPSearchResponseSocket/");
-		DatagramSocket s = getDatagramSocket();
-		// localAddr is null on Android m3-rc37a (01/30/08)
-		InetAddress localAddr = s.getLocalAddress();
-		if (localAddr != null) {
-			name.append(s.getLocalAddress()).append(':');
-			name.append(s.getLocalPort());
-		}
-		deviceSearchResponseThread = new Thread(this,name.toString());
-		deviceSearchResponseThread.start();		
+		SSDPSocketSelector.getInstance().register(this);
 	}
 	
 	public void stop()
 	{
-		deviceSearchResponseThread = null;
+		SSDPSocketSelector.getInstance().unregister(this);
 	}
 
 	////////////////////////////////////////////////
@@ -23,6 +23,8 @@
 * 		- Changed run() to catch IOException of HTTPMUSocket::receive().
 *	01/10/08
 *		- Changed start() not to abort when the interface infomation is null on Android m3-rc37a.
+*	10/18/26
+*		- Changed performSearchListener() to iterate the listener snapshot of ListenerList.
 *	
 ******************************************************************/
 
@@ -130,9 +132,8 @@ public class SSDPSearchSocket extends HTTPMUSocket implements Runnable
 
 	public void performSearchListener(SSDPPacket ssdpPacket)
 	{
-		int listenerSize = deviceSearchListenerList.size();
-		for (int n=0; n<listenerSize; n++) {
-			SearchListener listener = (SearchListener)deviceSearchListenerList.get(n);
+		for (Object obj : deviceSearchListenerList) {
+			SearchListener listener = (SearchListener)obj;
 			listener.deviceSearchReceived(ssdpPacket);
 		}
 	}		
@@ -0,0 +1,225 @@
+/******************************************************************
+*
+*	CyberLink for Java
+*
+*	Copyright (C) Satoshi Konno 2002-2003
+*
+*	File: SSDPSocketSelector.java
+*
+*	Revision;
+*
+*	10/18/26
+*		- first revision.
+*		- One thread and one selector receive for all the registered SSDP
+*		  sockets of the process, instead of a thread blocked in receive()
+*		  for every socket of every interface. The thread is started by the
+*		  first register() and ends when the last socket is unregistered.
+*		- Unregistered channels are put back in blocking mode once the
+*		  selector has dropped their keys.
+*
+******************************************************************/
+
+package org.cybergarage.upnp.ssdp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import org.cybergarage.util.Debug;
+
+public class SSDPSocketSelector implements Runnable
+{
+	////////////////////////////////////////////////
+	//	Receiver
+	////////////////////////////////////////////////
+
+	public interface Receiver
+	{
+		public DatagramChannel getDatagramChannel();
+		// Returns the next waiting packet, null when there is none.
+		public SSDPPacket receive(ByteBuffer recvBuf) throws IOException;
+		public void packetReceived(SSDPPacket packet);
+	}
+
+	////////////////////////////////////////////////
+	//	Instance
+	////////////////////////////////////////////////
+
+	private final static SSDPSocketSelector instance = new SSDPSocketSelector();
+
+	// packets read from one socket before the others get their turn
+	private final static int MAX_RECEIVE_PER_SELECT = 16;
+
+	public static SSDPSocketSelector getInstance()
+	{
+		return instance;
+	}
+
+	////////////////////////////////////////////////
+	//	Constructor
+	////////////////////////////////////////////////
+
+	private Selector selector = null;
+	private Thread selectorThread = null;
+	private final ArrayList<Receiver> pendingList = new ArrayList<Receiver>();
+	// cancelled, blocking mode can only be restored once the selector dropped the key
+	private final ArrayList<DatagramChannel> unregisteredList = new ArrayList<DatagramChannel>();
+	// reused for every packet, the packets get a copy of the received bytes only
+	private final ByteBuffer recvBuf = ByteBuffer.allocate(SSDP.RECV_MESSAGE_BUFSIZE);
+
+	private SSDPSocketSelector()
+	{
+	}
+
+	////////////////////////////////////////////////
+	//	register/unregister
+	////////////////////////////////////////////////
+
+	public synchronized boolean register(Receiver receiver)
+	{
+		if (receiver.getDatagramChannel() == null)
+			return false;
+		if (selectorThread == null) {
+			try {
+				selector = Selector.open();
+			}
+			catch (IOException e) {
+				Debug.warning(e);
+				return false;
+			}
+			selectorThread = new Thread(this, "Cyber.SSDPSocketSelector");
+			selectorThread.setDaemon(true);
+			selectorThread.start();
+		}
+		// channels can only be registered while the selector is not in select()
+		pendingList.add(receiver);
+		selector.wakeup();
+		return true;
+	}
+
+	public synchronized void unregister(Receiver receiver)
+	{
+		pendingList.remove(receiver);
+		DatagramChannel channel = receiver.getDatagramChannel();
+		if (selector == null || channel == null)
+			return;
+		SelectionKey key = channel.keyFor(selector);
+		if (key != null) {
+			key.cancel();
+			unregisteredList.add(channel);
+		}
+		selector.wakeup();
+	}
+
+	// Registers the pending receivers, or closes the selector when none is left.
+	private synchronized boolean update()
+	{
+		for (Receiver receiver : pendingList) {
+			DatagramChannel channel = receiver.getDatagramChannel();
+			if (channel == null)
+				continue;
+			try {
+				channel.configureBlocking(false);
+				channel.register(selector, SelectionKey.OP_READ, receiver);
+			}
+			catch (ClosedChannelException e) {
+			}
+			catch (IOException e) {
+				Debug.warning(e);
+			}
+		}
+		pendingList.clear();
+		restoreBlocking();
+		// a cancelled key may stay in keys() until the next select(), its wakeup can be lost
+		for (SelectionKey key : selector.keys()) {
+			if (key.isValid() == true)
+				return true;
+		}
+		try {
+			selector.close();
+		}
+		catch (IOException e) {}
+		// closing the selector drops all its keys
+		restoreBlocking();
+		unregisteredList.clear();
+		selector = null;
+		selectorThread = null;
+		return false;
+	}
+
+	// Cancelled keys are dropped by the next select(), after that the channel is not registered anymore.
+	private void restoreBlocking()
+	{
+		Iterator<DatagramChannel> channels = unregisteredList.iterator();
+		while (channels.hasNext()) {
+			DatagramChannel channel = channels.next();
+			if (channel.isRegistered() == true)
+				continue;
+			channels.remove();
+			try {
+				channel.configureBlocking(true);
+			}
+			catch (IOException e) {
+				// closed by the socket owner
+			}
+		}
+	}
+
+	////////////////////////////////////////////////
+	//	run
+	////////////////////////////////////////////////
+
+	public void run()
+	{
+		Selector selector;
+		synchronized (this) {
+			selector = this.selector;
+		}
+		while (update() == true) {
+			try {
+				selector.select();
+			}
+			catch (IOException e) {
+				Debug.warning(e);
+				continue;
+			}
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (key.isValid() == false)
+					continue;
+				receive(key);
+			}
+		}
+	}
+
+	private void receive(SelectionKey key)
+	{
+		Receiver receiver = (Receiver)key.attachment();
+		for (int n=0; n<MAX_RECEIVE_PER_SELECT; n++) {
+			SSDPPacket packet;
+			try {
+				packet = receiver.receive(recvBuf);
+			}
+			catch (IOException e) {
+				// closed by the socket owner
+				key.cancel();
+				return;
+			}
+			if (packet == null)
+				return;
+			try {
+				receiver.packetReceived(packet);
+			}
+			catch (RuntimeException e) {
+				Debug.warning(e);
+			}
+		}
+	}
+}
@@ -12,6 +12,8 @@
 *		- first revision.
 *	12/25/03
 *		- Added Advertiser functions.
+*	10/18/26
+*		- Added setDescriptionIndex() and getDescriptionIndex().
 *
 ******************************************************************/
 
@@ -70,6 +72,20 @@ public class DeviceData extends NodeData
 		this.location = location;
 	}
 
+	////////////////////////////////////////////////
+	// descriptionIndex
+	////////////////////////////////////////////////
+
+	private volatile DescriptionIndex descriptionIndex = null;
+
+	public DescriptionIndex getDescriptionIndex() {
+		return descriptionIndex;
+	}
+
+	public void setDescriptionIndex(DescriptionIndex index) {
+		descriptionIndex = index;
+	}
+
 	////////////////////////////////////////////////
 	//	LeaseTime 
 	////////////////////////////////////////////////
@@ -14,6 +14,8 @@
 *		- Moved setQueryListener() and getQueryListener() to StateVariableData class.
 *	03/30/05
 *		- Removed setDescriptionURL() and getDescriptionURL().
+*	10/18/26
+*		- Added setActionIndex() and getActionIndex().
 *
 ******************************************************************/
 
@@ -22,6 +24,7 @@ package org.cybergarage.upnp.xml;
 import org.cybergarage.util.*;
 import org.cybergarage.xml.*;
 
+import org.cybergarage.upnp.*;
 import org.cybergarage.upnp.event.*;
 
 public class ServiceData extends NodeData
@@ -52,6 +55,21 @@ public class ServiceData extends NodeData
 
 	public void setSCPDNode(Node node) {
 		scpdNode = node;
+		actionIndex = null;
+	}
+
+	////////////////////////////////////////////////
+	// actionIndex
+	////////////////////////////////////////////////
+
+	private volatile DescriptionIndex actionIndex = null;
+
+	public DescriptionIndex getActionIndex() {
+		return actionIndex;
+	}
+
+	public void setActionIndex(DescriptionIndex index) {
+		actionIndex = index;
 	}
 
 	////////////////////////////////////////////////
@@ -10,20 +10,47 @@
 *
 *	12/30/02
 *		- first revision.
+*	10/18/26
+*		- Changed to a copy-on-write list. Listeners are added and removed
+*		  rarely but performed for every packet and event, so the performers
+*		  now iterate a snapshot array without taking a lock.
+*		- Every add method skips listeners already in the list. The adds
+*		  are serialized so a check and its insert can not interleave.
 *
 ******************************************************************/
 
 package org.cybergarage.util;
 
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-public class ListenerList extends Vector
+public class ListenerList extends CopyOnWriteArrayList<Object>
 {
-	public boolean add(Object obj)
+	public synchronized boolean add(Object obj)
 	{
-		if (0 <= indexOf(obj))
-			return false;
-		return super.add(obj);
+		return addIfAbsent(obj);
+	}
+
+	public synchronized void add(int index, Object obj)
+	{
+		if (contains(obj) == true)
+			return;
+		super.add(index, obj);
+	}
+
+	public synchronized boolean addAll(Collection<? extends Object> c)
+	{
+		return 0 < addAllAbsent(c);
 	}
-}
 
+	public synchronized boolean addAll(int index, Collection<? extends Object> c)
+	{
+		ArrayList<Object> absent = new ArrayList<Object>();
+		for (Object obj : c) {
+			if (contains(obj) == false && absent.contains(obj) == false)
+				absent.add(obj);
+		}
+		return super.addAll(index, absent);
+	}
+}
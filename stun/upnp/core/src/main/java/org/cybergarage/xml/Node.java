@@ -26,6 +26,9 @@
 *		- Changed toString() to return as utf-8 string.
 *	02/08/08
 *		- Added addValue().
+*	10/18/26
+*		- Added getTreeRoot() and getTreeModCount(), counted up on every change
+*		  of a name, a value or the children anywhere in the tree.
 *
 ******************************************************************/
 
@@ -92,6 +95,31 @@ public class Node
 		return rootNode;
 	}
 
+	////////////////////////////////////////////////
+	//	modification count
+	////////////////////////////////////////////////
+
+	// only kept on the top node of a tree
+	private int treeModCount = 0;
+
+	public Node getTreeRoot()
+	{
+		Node node = this;
+		while (node.parentNode != null)
+			node = node.parentNode;
+		return node;
+	}
+
+	public int getTreeModCount()
+	{
+		return getTreeRoot().treeModCount;
+	}
+
+	private void treeModified()
+	{
+		getTreeRoot().treeModCount++;
+	}
+
 	////////////////////////////////////////////////
 	//	name
 	////////////////////////////////////////////////
@@ -101,11 +129,13 @@ public class Node
 	public void setName(String name) 
 	{
 		this.name = name;
+		treeModified();
 	}
 
 	public void setName(String ns, String name) 
 	{
 		this.name = ns + ":" + name;
+		treeModified();
 	}
 
 	public String getName() 
@@ -127,6 +157,7 @@ public class Node
 	public void setValue(String value) 
 	{
 		this.value = value;
+		treeModified();
 	}
 
 	public void setValue(int value) 
@@ -136,6 +167,7 @@ public class Node
 
 	public void addValue(String value) 
 	{
+		treeModified();
 		if (this.value == null) {
 			this.value = value;
 			return;
@@ -266,11 +298,13 @@ public class Node
 	public void addNode(Node node) {
 		node.setParentNode(this);
 		nodeList.add(node);
+		treeModified();
 	}
 
 	public void insertNode(Node node, int index) {
 		node.setParentNode(this);
 		nodeList.insertElementAt(node, index);
+		treeModified();
 	}
 
 	public int getIndex(String name){
@@ -286,16 +320,19 @@ public class Node
 
 	public boolean removeNode(Node node) {
 		node.setParentNode(null);
+		treeModified();
 		return nodeList.remove(node);
 	}
 
 	public boolean removeNode(String name) {
+		treeModified();
 		return nodeList.remove(getNode(name));
 	}
 
 	public void removeAllNodes()
 	{
 		nodeList.clear();
+		treeModified();
 	}
 	
 	public boolean hasNodes()
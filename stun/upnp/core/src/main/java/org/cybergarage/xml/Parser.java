@@ -14,6 +14,9 @@
 *		- Change parse(String) to use StringBufferInputStream instead of URL.
 *	11/11/2009
 *		- Changed Parser::parser() to use ByteArrayInputStream instead of StringBufferInputStream because of bugs in Android v1.6.
+*	10/18/26
+*		- Changed parse(URL) to set connect and read timeouts, and not to retry
+*		  with HTTPRequest when the location timed out.
 *
 ******************************************************************/
 
@@ -24,14 +27,21 @@ import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.ByteArrayInputStream;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 
+import javax.xml.stream.XMLStreamException;
+
 import org.cybergarage.http.HTTP;
 import org.cybergarage.http.HTTPRequest;
 import org.cybergarage.http.HTTPResponse;
 
 public abstract class Parser 
 {
+	// a location comes from any device on the LAN, do not wait on it forever
+	public final static int DEFAULT_CONNECT_TIMEOUT = 5000;
+	public final static int DEFAULT_READ_TIMEOUT = 10000;
+
 	////////////////////////////////////////////////
 	//	Constructor
 	////////////////////////////////////////////////
@@ -58,6 +68,8 @@ public abstract class Parser
 		
 		try {
 	 		HttpURLConnection urlCon = (HttpURLConnection)locationURL.openConnection();
+			urlCon.setConnectTimeout(DEFAULT_CONNECT_TIMEOUT);
+			urlCon.setReadTimeout(DEFAULT_READ_TIMEOUT);
 			urlCon.setRequestMethod("GET");
 			urlCon.setRequestProperty(HTTP.CONTENT_LENGTH,"0");
 			if (host != null)
@@ -73,6 +85,9 @@ public abstract class Parser
 			return rootElem;
 			
 		} catch (Exception e) {
+			// a peer that did not answer in time will not answer the retry either
+			if (isTimeout(e) == true)
+				throw new ParserException(e);
 			//throw new ParserException(e);
 		}
 
@@ -88,6 +103,22 @@ public abstract class Parser
 		return parse(strBuf);
 	}
 
+	// The parsers wrap the stream exceptions, the timeout can be any cause down the chain.
+	private static boolean isTimeout(Throwable e)
+	{
+		Throwable cause = e;
+		while (cause != null) {
+			if (cause instanceof SocketTimeoutException)
+				return true;
+			// older StAX implementations keep it as nested exception only
+			if (cause.getCause() == null && cause instanceof XMLStreamException)
+				cause = ((XMLStreamException)cause).getNestedException();
+			else
+				cause = cause.getCause();
+		}
+		return false;
+	}
+
 	////////////////////////////////////////////////
 	//	parse (File)
 	////////////////////////////////////////////////
@@ -0,0 +1,188 @@
+/******************************************************************
+*
+*	CyberXML for Java
+*
+*	Copyright (C) Satoshi Konno 2002
+*
+*	File: StaxParser.java
+*
+*	Revision:
+*
+*	10/18/26
+*		- first revision.
+*		- Builds the Node tree in a single pass over a StAX stream reader of
+*		  the JDK, without an intermediate W3C DOM or an external pull parser.
+*		  Subtrees of the skipped elements are read over and never allocated.
+*
+******************************************************************/
+
+package org.cybergarage.xml.parser;
+
+import java.io.InputStream;
+import java.util.HashSet;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.cybergarage.xml.Node;
+import org.cybergarage.xml.Parser;
+import org.cybergarage.xml.ParserException;
+
+public class StaxParser extends Parser
+{
+	private final static String XMLNS = "xmlns";
+
+	// XMLInputFactory is not thread safe and expensive to look up, keep one per thread.
+	private final static ThreadLocal<XMLInputFactory> threadFactory = new ThreadLocal<XMLInputFactory>() {
+		@Override
+		protected XMLInputFactory initialValue()
+		{
+			XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+			factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+			// descriptions come from any device on the LAN, do not resolve anything they point to
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+			factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+			return factory;
+		}
+	};
+
+	private final HashSet<String> skippedElements = new HashSet<String>();
+
+	////////////////////////////////////////////////
+	//	Constructor
+	////////////////////////////////////////////////
+
+	public StaxParser()
+	{
+	}
+
+	public StaxParser(String[] skippedElements)
+	{
+		for (int n=0; n<skippedElements.length; n++)
+			this.skippedElements.add(skippedElements[n]);
+	}
+
+	////////////////////////////////////////////////
+	//	skippedElements
+	////////////////////////////////////////////////
+
+	public boolean isSkippedElement(String name)
+	{
+		return skippedElements.contains(name);
+	}
+
+	////////////////////////////////////////////////
+	//	parse
+	////////////////////////////////////////////////
+
+	public Node parse(XMLStreamReader reader) throws XMLStreamException
+	{
+		Node rootNode = null;
+		Node currNode = null;
+		StringBuilder currValue = null;
+
+		while (reader.hasNext()) {
+			int eventType = reader.next();
+			switch (eventType) {
+			case XMLStreamConstants.START_ELEMENT:
+				{
+					String name = getName(reader.getPrefix(), reader.getLocalName());
+					if (currNode != null && isSkippedElement(name) == true) {
+						skipElement(reader);
+						break;
+					}
+					if (currNode != null && currValue != null)
+						currNode.setValue(currValue.toString());
+					currValue = null;
+					Node node = new Node(name);
+					int nsLen = reader.getNamespaceCount();
+					for (int n=0; n<nsLen; n++) {
+						String nsName = getName(XMLNS, reader.getNamespacePrefix(n));
+						node.setAttribute(nsName, reader.getNamespaceURI(n));
+					}
+					int attrsLen = reader.getAttributeCount();
+					for (int n=0; n<attrsLen; n++) {
+						String attrName = getName(reader.getAttributePrefix(n), reader.getAttributeLocalName(n));
+						node.setAttribute(attrName, reader.getAttributeValue(n));
+					}
+					if (currNode != null)
+						currNode.addNode(node);
+					currNode = node;
+					if (rootNode == null)
+						rootNode = node;
+				}
+				break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE:
+				{
+					if (currNode == null)
+						break;
+					if (currValue == null)
+						currValue = new StringBuilder(currNode.getValue());
+					currValue.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+				}
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				{
+					if (currValue != null)
+						currNode.setValue(currValue.toString());
+					currValue = null;
+					currNode = currNode.getParentNode();
+				}
+				break;
+			}
+		}
+
+		return rootNode;
+	}
+
+	public Node parse(InputStream inStream) throws ParserException
+	{
+		XMLStreamReader reader = null;
+		try {
+			reader = threadFactory.get().createXMLStreamReader(inStream);
+			return parse(reader);
+		}
+		catch (Exception e) {
+			throw new ParserException(e);
+		}
+		finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				}
+				catch (XMLStreamException e) {}
+			}
+		}
+	}
+
+	////////////////////////////////////////////////
+	//	Utility
+	////////////////////////////////////////////////
+
+	private static String getName(String prefix, String localName)
+	{
+		if (prefix == null || prefix.length() <= 0)
+			return localName;
+		if (localName == null || localName.length() <= 0)
+			return prefix;
+		return prefix + ":" + localName;
+	}
+
+	// Reads over the current element and its subtree, the reader is left on its end tag.
+	private static void skipElement(XMLStreamReader reader) throws XMLStreamException
+	{
+		int depth = 1;
+		while (0 < depth && reader.hasNext()) {
+			int eventType = reader.next();
+			if (eventType == XMLStreamConstants.START_ELEMENT)
+				depth++;
+			else if (eventType == XMLStreamConstants.END_ELEMENT)
+				depth--;
+		}
+	}
+}
@@ -18,12 +18,19 @@
  */
 package se.sics.nat.stun.upnp;
 
+import java.io.File;
 import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Random;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import org.cybergarage.upnp.UPnP;
 import org.cybergarage.upnp.ssdp.SSDPPacket;
 import org.javatuples.Pair;
@@ -31,6 +38,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import se.sics.kompics.ComponentDefinition;
 import se.sics.kompics.Handler;
+import se.sics.kompics.KompicsEvent;
 import se.sics.kompics.Negative;
 import se.sics.kompics.Start;
 import se.sics.ktoolbox.util.identifiable.BasicIdentifiers;
@@ -39,12 +47,27 @@ import se.sics.ktoolbox.util.identifiable.IdentifierRegistryV2;
 import se.sics.nat.stun.upnp.cybergarage.Cybergarage;
 import se.sics.nat.stun.upnp.cybergarage.DetectedIP;
 import se.sics.nat.stun.upnp.cybergarage.ForwardPort;
+import se.sics.nat.stun.upnp.cybergarage.GatewayCache;
 import se.sics.nat.stun.upnp.event.UPnPMap;
+import se.sics.nat.stun.upnp.event.UPnPMapLost;
 import se.sics.nat.stun.upnp.event.UPnPReady;
 import se.sics.nat.stun.upnp.event.UPnPUnmap;
 import se.sics.nat.stun.upnp.util.Protocol;
 
 /**
+ * Discovery and the SOAP port mapping calls are blocking - they run on a
+ * single worker thread, in order, and their results come back to the
+ * component as events on the loopback port. Discovery completes as soon as
+ * the first IGD answers, DEFAULT_UPNP_DISCOVERY_TIMEOUT is only the upper
+ * bound. With a gateway cache the last gateway is tried first, with one
+ * GetExternalIPAddress call, and discovery only runs if it does not answer -
+ * or if the local address it was found on is no longer ours.
+ * <p>
+ * Mappings are made with the configured lease and renewed at half of it. A
+ * renew tick every quarter of that window renews, in one batch, all mappings
+ * that would be due before the next tick. Mappings the gateway does not renew
+ * are dropped and reported with UPnPMapLost.
+ *
  * @author Alex Ormenisan <aaor@kth.se>
  */
 public class UpnpComp extends ComponentDefinition {
@@ -57,17 +80,31 @@ public class UpnpComp extends ComponentDefinition {
   private Negative<UPnPPort> upnpPort = provides(UPnPPort.class);
   //*************************CONFIGURATION************************************
   private final String applicationName;
+  private final GatewayCache gatewayCache;
+  //seconds, 0 - no expiry, no renewal
+  private final int leaseDuration;
+  private final long renewAfter;
+  private final long renewTick;
   //*************************INTERNAL_STATE***********************************
   private final Random rand;
   private Cybergarage upnp;
   private InetAddress upnpDeviceIp;
   //<privatePort, req> - answer req on change
   private Map<Integer, UPnPMap.Request> portMapReq = new HashMap<>();
+  //<privatePort, lease>
+  private final Map<Integer, Lease> leases = new HashMap<>();
+  private boolean renewTickStarted = false;
+  //blocking upnp calls and the renew tick
+  private ScheduledExecutorService upnpExecutor;
   //***************************AUX_STATE**************************************
   private final IdentifierFactory eventIds;
 
   public UpnpComp(Init init) {
     applicationName = init.applicationName;
+    gatewayCache = init.gatewayCacheFile.isPresent() ? new GatewayCache(new File(init.gatewayCacheFile.get())) : null;
+    leaseDuration = init.leaseDuration;
+    renewAfter = leaseDuration * 1000l / 2;
+    renewTick = Math.max(renewAfter / 4, 1000);
     logPrefix = applicationName + " ";
     LOG.info("{}initiating...", logPrefix);
     this.rand = new Random(init.seed);
@@ -77,6 +114,11 @@ public class UpnpComp extends ComponentDefinition {
     subscribe(handleStart, control);
     subscribe(handleMapPorts, upnpPort);
     subscribe(handleUnmapPorts, upnpPort);
+    subscribe(handleDiscovered, loopback);
+    subscribe(handlePortsMapped, loopback);
+    subscribe(handlePortsUnmapped, loopback);
+    subscribe(handleRenewTick, loopback);
+    subscribe(handlePortsRenewed, loopback);
   }
 
   Handler handleStart = new Handler<Start>() {
@@ -84,41 +126,111 @@ public class UpnpComp extends ComponentDefinition {
     public void handle(Start event) {
       LOG.info("{}starting...", logPrefix);
       upnp = new Cybergarage(UpnpComp.this, UpnpConfig.DEFAULT_MULTICAST_PORT);
-      try {
-        upnp.init();
-      } catch (RuntimeException ex) {
-        LOG.warn("{}cybergarage init error:{}", logPrefix, ex.toString());
-        throw ex;
-      }
-      try {
-        Thread.currentThread().sleep(UpnpConfig.DEFAULT_UPNP_DISCOVERY_TIMEOUT);
-      } catch (InterruptedException ex) {
-        LOG.error("{}thread sleep exception:{}", logPrefix, ex.toString());
-        throw new RuntimeException("upnp thread exception", ex);
-      }
-      DetectedIP[] ips = upnp.getAddress();
-      if (ips != null) {
-        if (ips.length > 1) {
-          LOG.warn("{}multiple upnp ips detected, selecting first", logPrefix);
+      upnp.setLeaseDuration(leaseDuration);
+      upnpExecutor = Executors.newSingleThreadScheduledExecutor();
+      upnpExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          trigger(new Discovered(discover()), onSelf);
         }
-        for (DetectedIP ip : ips) {
-          LOG.info("{}public ip detected:{}", logPrefix, ip.publicAddress);
-          upnpDeviceIp = ip.publicAddress;
-          break;
-        }
-      }
-      if (upnpDeviceIp == null) {
-        upnp.terminate(); //no upnp found should stop looking
-      }
-      trigger(new UPnPReady(eventIds.randomId(), upnpDeviceIp), upnpPort);
+      });
     }
   };
 
   @Override
   public void tearDown() {
     LOG.info("{}tear down...", logPrefix);
-    upnp.terminate();
+    if (upnpExecutor != null) {
+      //remove our mappings after whatever is still queued
+      upnpExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          upnp.terminate();
+        }
+      });
+      upnpExecutor.shutdown();
+    }
+  }
+
+  /**
+   * runs on the upnp executor
+   */
+  private InetAddress discover() {
+    if (gatewayCache != null) {
+      GatewayCache.Gateway gw = gatewayCache.get();
+      if (gw != null && !boundLocally(gw.interfaceAddress)) {
+        //a new dhcp lease behind the same gateway - mappings would forward to the old address
+        LOG.info("{}cached gateway interface:{} no longer local - discovering", logPrefix, gw.interfaceAddress);
+        gatewayCache.clear();
+        gw = null;
+      }
+      if (gw != null) {
+        String natAddress = upnp.loadGateway(gw);
+        if (natAddress != null) {
+          try {
+            InetAddress ip = InetAddress.getByName(natAddress);
+            LOG.info("{}public ip from cached gateway:{}", logPrefix, ip);
+            return ip;
+          } catch (UnknownHostException ex) {
+            LOG.warn("{}bad external ip:{} from cached gateway", logPrefix, natAddress);
+          }
+        }
+        LOG.info("{}cached gateway:{} not usable - discovering", logPrefix, gw);
+      }
+    }
+    try {
+      upnp.init();
+    } catch (RuntimeException ex) {
+      LOG.warn("{}cybergarage init error:{}", logPrefix, ex.toString());
+      return null;
+    }
+    try {
+      if (!upnp.awaitIgd(UpnpConfig.DEFAULT_UPNP_DISCOVERY_TIMEOUT)) {
+        LOG.info("{}no igd answered in:{}ms", logPrefix, UpnpConfig.DEFAULT_UPNP_DISCOVERY_TIMEOUT);
+      }
+    } catch (InterruptedException ex) {
+      LOG.info("{}discovery interrupted", logPrefix);
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    DetectedIP[] ips = upnp.getAddress();
+    if (ips != null) {
+      if (ips.length > 1) {
+        LOG.warn("{}multiple upnp ips detected, selecting first", logPrefix);
+      }
+      for (DetectedIP ip : ips) {
+        LOG.info("{}public ip detected:{}", logPrefix, ip.publicAddress);
+        if (gatewayCache != null) {
+          GatewayCache.Gateway gw = upnp.getGateway(ip.publicAddress.getHostAddress());
+          if (gw != null) {
+            gatewayCache.put(gw);
+          }
+        }
+        return ip.publicAddress;
+      }
+    }
+    if (gatewayCache != null) {
+      gatewayCache.clear();
+    }
+    upnp.terminate(); //no upnp found should stop looking
+    return null;
+  }
+
+  private boolean boundLocally(String address) {
+    try {
+      return NetworkInterface.getByInetAddress(InetAddress.getByName(address)) != null;
+    } catch (UnknownHostException | SocketException ex) {
+      return false;
+    }
   }
+
+  Handler handleDiscovered = new Handler<Discovered>() {
+    @Override
+    public void handle(Discovered event) {
+      upnpDeviceIp = event.externalIp;
+      trigger(new UPnPReady(eventIds.randomId(), upnpDeviceIp), upnpPort);
+    }
+  };
   //**************************************************************************
 
   Handler handleMapPorts = new Handler<UPnPMap.Request>() {
@@ -146,9 +258,21 @@ public class UpnpComp extends ComponentDefinition {
         portMapReq.put(e.getKey(), req); //in order to send back a port changed notify if necessary
         registerPorts.add(registerPort);
       }
-      Map<ForwardPort, Boolean> resp = upnp.registerPorts(registerPorts);
+      upnpExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          trigger(new PortsMapped(req, upnp.registerPorts(registerPorts)), onSelf);
+        }
+      });
+    }
+  };
+
+  Handler handlePortsMapped = new Handler<PortsMapped>() {
+    @Override
+    public void handle(PortsMapped event) {
+      UPnPMap.Request req = event.req;
       Map<Integer, Pair<Protocol, Integer>> mappedPorts = new HashMap<Integer, Pair<Protocol, Integer>>();
-      for (Map.Entry<ForwardPort, Boolean> e : resp.entrySet()) {
+      for (Map.Entry<ForwardPort, Boolean> e : event.result.entrySet()) {
         Protocol portProtocol;
         switch (e.getKey().protocol) {
           case ForwardPort.PROTOCOL_UDP_IPV4:
@@ -164,12 +288,16 @@ public class UpnpComp extends ComponentDefinition {
         if (e.getValue()) {
           LOG.info("{}mapped port:{} protocol:{}", new Object[]{logPrefix, e.getKey().portNumber, portProtocol});
           mappedPorts.put(e.getKey().portNumber, Pair.with(portProtocol, e.getKey().portNumber));
+          leases.put(e.getKey().portNumber, new Lease(e.getKey(), portProtocol, System.currentTimeMillis() + renewAfter));
         } else {
           LOG.warn("{}failed to map port:{} protocol:{}", new Object[]{logPrefix, e.getKey().portNumber, portProtocol});
           portMapReq.remove(e.getKey().portNumber);
         }
       }
       answer(req, req.answer(mappedPorts));
+      if (!mappedPorts.isEmpty()) {
+        startRenewTick();
+      }
     }
   };
 
@@ -182,6 +310,7 @@ public class UpnpComp extends ComponentDefinition {
         if (portMapReq.remove(e.getKey()) == null) {
           continue;
         }
+        leases.remove(e.getKey());
 
         String mappingName = applicationName;
         int protocolType;
@@ -201,8 +330,85 @@ public class UpnpComp extends ComponentDefinition {
         ForwardPort unregisterPort = new ForwardPort(mappingName, false, protocolType, e.getKey());
         unregisterPorts.add(unregisterPort);
       }
-      upnp.unregisterPorts(unregisterPorts);
-      answer(req, req.answer(req.ports));
+      upnpExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          upnp.unregisterPorts(unregisterPorts);
+          trigger(new PortsUnmapped(req), onSelf);
+        }
+      });
+    }
+  };
+
+  Handler handlePortsUnmapped = new Handler<PortsUnmapped>() {
+    @Override
+    public void handle(PortsUnmapped event) {
+      answer(event.req, event.req.answer(event.req.ports));
+    }
+  };
+
+  //*******************************RENEWAL************************************
+  private void startRenewTick() {
+    if (renewTickStarted || leaseDuration <= 0) {
+      return;
+    }
+    renewTickStarted = true;
+    upnpExecutor.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        trigger(new RenewTick(), onSelf);
+      }
+    }, renewTick, renewTick, TimeUnit.MILLISECONDS);
+  }
+
+  Handler handleRenewTick = new Handler<RenewTick>() {
+    @Override
+    public void handle(RenewTick event) {
+      //everything due before the next tick goes in this batch
+      long dueBy = System.currentTimeMillis() + renewTick;
+      final CopyOnWriteArraySet<ForwardPort> renewPorts = new CopyOnWriteArraySet<>();
+      for (Lease lease : leases.values()) {
+        if (!lease.renewing && lease.renewAt <= dueBy) {
+          lease.renewing = true;
+          renewPorts.add(lease.port);
+        }
+      }
+      if (renewPorts.isEmpty()) {
+        return;
+      }
+      LOG.debug("{}renewing:{} mappings", logPrefix, renewPorts.size());
+      upnpExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          trigger(new PortsRenewed(upnp.renewPorts(renewPorts)), onSelf);
+        }
+      });
+    }
+  };
+
+  Handler handlePortsRenewed = new Handler<PortsRenewed>() {
+    @Override
+    public void handle(PortsRenewed event) {
+      Map<Integer, Pair<Protocol, Integer>> lostPorts = new HashMap<>();
+      for (Map.Entry<ForwardPort, Boolean> e : event.result.entrySet()) {
+        int port = e.getKey().portNumber;
+        Lease lease = leases.get(port);
+        if (lease == null || lease.port != e.getKey()) {
+          continue; //unmapped meanwhile
+        }
+        lease.renewing = false;
+        if (e.getValue()) {
+          lease.renewAt = System.currentTimeMillis() + renewAfter;
+        } else {
+          LOG.warn("{}gateway did not renew port:{} protocol:{}", new Object[]{logPrefix, port, lease.protocol});
+          leases.remove(port);
+          portMapReq.remove(port);
+          lostPorts.put(port, Pair.with(lease.protocol, port));
+        }
+      }
+      if (!lostPorts.isEmpty()) {
+        trigger(new UPnPMapLost(eventIds.randomId(), lostPorts), upnpPort);
+      }
     }
   };
 
@@ -212,14 +418,79 @@ public class UpnpComp extends ComponentDefinition {
     LOG.debug("{}:Device notified:{}", logPrefix, ssdpPacket);
   }
 
+  //*******************************LOOPBACK***********************************
+  private static class Discovered implements KompicsEvent {
+
+    final InetAddress externalIp;
+
+    Discovered(InetAddress externalIp) {
+      this.externalIp = externalIp;
+    }
+  }
+
+  private static class PortsMapped implements KompicsEvent {
+
+    final UPnPMap.Request req;
+    final Map<ForwardPort, Boolean> result;
+
+    PortsMapped(UPnPMap.Request req, Map<ForwardPort, Boolean> result) {
+      this.req = req;
+      this.result = result;
+    }
+  }
+
+  private static class RenewTick implements KompicsEvent {
+  }
+
+  private static class PortsRenewed implements KompicsEvent {
+
+    final Map<ForwardPort, Boolean> result;
+
+    PortsRenewed(Map<ForwardPort, Boolean> result) {
+      this.result = result;
+    }
+  }
+
+  private static class Lease {
+
+    final ForwardPort port;
+    final Protocol protocol;
+    long renewAt;
+    boolean renewing = false;
+
+    Lease(ForwardPort port, Protocol protocol, long renewAt) {
+      this.port = port;
+      this.protocol = protocol;
+      this.renewAt = renewAt;
+    }
+  }
+
+  private static class PortsUnmapped implements KompicsEvent {
+
+    final UPnPUnmap.Request req;
+
+    PortsUnmapped(UPnPUnmap.Request req) {
+      this.req = req;
+    }
+  }
+
   public static class Init extends se.sics.kompics.Init<UpnpComp> {
 
     public final long seed;
     public final String applicationName;
+    public final Optional<String> gatewayCacheFile;
+    //seconds, 0 - no expiry
+    public final int leaseDuration;
 
-    public Init(long seed, String applicationName) {
+    public Init(long seed, String applicationName, Optional<String> gatewayCacheFile, int leaseDuration) {
       this.seed = seed;
       this.applicationName = applicationName;
+      this.gatewayCacheFile = gatewayCacheFile;
+      this.leaseDuration = leaseDuration;
+    }
+
+    public Init(long seed, String applicationName) {
+      this(seed, applicationName, Optional.<String>empty(), UpnpConfig.DEFAULT_LEASE_DURATION);
     }
   }
 
@@ -229,5 +500,6 @@ public class UpnpComp extends ComponentDefinition {
     public static final int DEFAULT_ROOT_DEVICE_TIMEOUT = 1 * 1200;
 
     public static final int DEFAULT_MULTICAST_PORT = 55555;
+    public static final int DEFAULT_LEASE_DURATION = 60 * 60;
   }
 }
@@ -23,7 +23,16 @@ import java.net.UnknownHostException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.cybergarage.upnp.Action;
 import org.cybergarage.upnp.ActionList;
@@ -32,13 +41,19 @@ import org.cybergarage.upnp.ArgumentList;
 import org.cybergarage.upnp.ControlPoint;
 import org.cybergarage.upnp.Device;
 import org.cybergarage.upnp.DeviceList;
+import org.cybergarage.upnp.IconList;
 import org.cybergarage.upnp.Service;
 import org.cybergarage.upnp.ServiceList;
 import org.cybergarage.upnp.ServiceStateTable;
 import org.cybergarage.upnp.StateVariable;
+import org.cybergarage.upnp.UPnP;
+import org.cybergarage.upnp.control.ActionRequest;
 import org.cybergarage.upnp.device.DeviceChangeListener;
+import org.cybergarage.upnp.device.InvalidDescriptionException;
 import org.cybergarage.upnp.device.NotifyListener;
 import org.cybergarage.upnp.ssdp.SSDPPacket;
+import org.cybergarage.xml.ParserException;
+import org.cybergarage.xml.parser.StaxParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import se.sics.nat.stun.upnp.UpnpComp;
@@ -64,29 +79,138 @@ public class Cybergarage extends ControlPoint implements DeviceChangeListener,
     private static final String WANCON_DEVICE = "urn:schemas-upnp-org:device:WANConnectionDevice:1";
     private static final String WAN_IP_CONNECTION = "urn:schemas-upnp-org:service:WANIPConnection:1";
     private static final String WAN_PPP_CONNECTION = "urn:schemas-upnp-org:service:WANPPPConnection:1";
-    private Device _router;
-    private Service _service;
-    private boolean isDisabled = false; // We disable the plugin if more than one IGD is found
+    /**
+     * Only devices answering for a WAN connection service get their description fetched - media renderers,
+     * printers and the like are dropped on the SSDP packet
+     */
+    private static final String[] IGD_SEARCH_TARGETS = new String[]{WAN_IP_CONNECTION, WAN_PPP_CONNECTION};
+    /** Max seconds a device may delay its search response */
+    private static final int IGD_SEARCH_MX = 1;
+    /** Max AddPortMapping calls in flight - consumer routers do not like more */
+    private static final int MAX_PARALLEL_MAPPINGS = 4;
+    /** Runs the AddPortMapping calls of every mapPorts - idle threads exit, so nothing to shut down */
+    private static final ThreadPoolExecutor MAPPERS = mappersPool();
+    /** Description parts we never look at - not materialized as nodes */
+    private static final String[] SKIPPED_ELEMENTS = new String[]{IconList.ELEM_NAME};
+    /** Lease of our mappings in seconds, 0 for no expiry */
+    private volatile int leaseDuration = 10*1000;
+    /** The gateway fields are read without the lock - callers copy them to locals before use */
+    private volatile Device _router;
+    private volatile Service _service;
+    /** Local address the IGD answered on - the internal client of our mappings */
+    private volatile String interfaceAddress;
+    private volatile boolean isDisabled = false; // We disable the plugin if more than one IGD is found
+    /**
+     * Guards updates of the gateway fields and of portsToForward/forwardCallback. Never held over a network call,
+     * a description parse or a device tree walk, so SSDP callbacks do not wait on port mapping and vice versa.
+     */
     private final Object lock = new Object();
     /** List of ports we want to forward */
     private CopyOnWriteArraySet<ForwardPort> portsToForward;
     /** List of ports we have actually forwarded */
-    private CopyOnWriteArraySet<ForwardPort> portsForwarded;
+    private final CopyOnWriteArraySet<ForwardPort> portsForwarded;
     /** Callback to call when a forward fails or succeeds */
     private ForwardPortCallback forwardCallback;
     private final UpnpComp component;
+    /** Released once the first IGD has been handled, usable or not */
+    private final CountDownLatch igdLatch = new CountDownLatch(1);
 
 
     public Cybergarage(UpnpComp component, int multicastPort) {
         super(multicastPort);
+        if (System.getProperty(UPnP.XML_CLASS_PROPERTTY) == null) {
+            UPnP.setXMLParser(new StaxParser(SKIPPED_ELEMENTS));
+        }
         portsForwarded = new CopyOnWriteArraySet<ForwardPort>();
         this.component = component;
         addDeviceChangeListener(this);
         addNotifyListener(this);
     }
 
+    /**
+     * Rebuilds the gateway from the cache and checks it with a single GetExternalIPAddress call - no multicast and no
+     * description downloads. Blocking.
+     * @return the external address the gateway reports, or null if it is not usable and discovery is needed
+     */
+    public String loadGateway(GatewayCache.Gateway gw) {
+        Device dev;
+        try {
+            dev = addDevice(gw.location, gw.description);
+        } catch (ParserException ex) {
+            logger.warn("Cached gateway description is broken: " + ex.getMessage());
+            return null;
+        }
+        if (dev == null) {
+            return null;
+        }
+        synchronized (lock) {
+            _router = dev;
+            interfaceAddress = gw.interfaceAddress;
+        }
+        discoverService();
+        Service service = _service;
+        boolean usable = service != null && gw.serviceType.equals(service.getServiceType())
+                && gw.controlUrl.equals(service.getControlURL());
+        if (usable) {
+            try {
+                usable = service.loadSCPD(gw.scpd);
+            } catch (InvalidDescriptionException ex) {
+                usable = false;
+            }
+        }
+        String natAddress = usable ? getNATAddress() : null;
+        if (usable && natAddress == null) {
+            logger.info("Cached gateway " + gw.location + " did not answer");
+            usable = false;
+        }
+        if (!usable) {
+            removeDevice(dev);
+            synchronized (lock) {
+                _router = null;
+                _service = null;
+                interfaceAddress = null;
+            }
+            return null;
+        }
+        logger.debug("UP&P IGD loaded from cache : " + dev.getFriendlyName());
+        igdLatch.countDown();
+        return natAddress;
+    }
+
+    /**
+     * @return the gateway in use, for caching, or null if there is none
+     */
+    public GatewayCache.Gateway getGateway(String externalIp) {
+        Device router;
+        Service service;
+        String ifAddress;
+        synchronized (lock) {
+            router = _router;
+            service = _service;
+            ifAddress = interfaceAddress;
+        }
+        if (router == null || service == null || ifAddress == null || ifAddress.isEmpty()) {
+            return null;
+        }
+        byte[] scpd = service.getSCPDData();
+        if (scpd.length == 0) {
+            return null;
+        }
+        return new GatewayCache.Gateway(router.getLocation(), ifAddress, service.getServiceType(),
+                service.getControlURL(), externalIp, router.getRootNode().toString(), new String(scpd));
+    }
+
+    public void setLeaseDuration(int seconds) {
+        leaseDuration = seconds;
+    }
+
+    public int getLeaseDuration() {
+        return leaseDuration;
+    }
+
     public void init() {
-        super.start();
+        setSearchFilter(IGD_SEARCH_TARGETS);
+        super.start(IGD_SEARCH_TARGETS, IGD_SEARCH_MX);
     }
 
     public void terminate() {
@@ -94,6 +218,14 @@ public class Cybergarage extends ControlPoint implements DeviceChangeListener,
         super.stop();
     }
 
+    /**
+     * Blocks until the first IGD answered the search or the timeout passed.
+     * @return false on timeout
+     */
+    public boolean awaitIgd(long timeoutMs) throws InterruptedException {
+        return igdLatch.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
     public DetectedIP[] getAddress() {
         logger.trace("UP&P.getAddress() is called \\o/");
         if (isDisabled) {
@@ -119,11 +251,9 @@ public class Cybergarage extends ControlPoint implements DeviceChangeListener,
     }
 
     public void deviceAdded(Device dev) {
-        synchronized (lock) {
-            if (isDisabled) {
-                logger.debug("Plugin has been disabled previously, ignoring new device.");
-                return;
-            }
+        if (isDisabled) {
+            logger.debug("Plugin has been disabled previously, ignoring new device.");
+            return;
         }
         if (!ROUTER_DEVICE.equals(dev.getDeviceType()) || !dev.isRootDevice()) {
             return; // Silently ignore non-IGD devices
@@ -137,12 +267,14 @@ public class Cybergarage extends ControlPoint implements DeviceChangeListener,
             }
 
             stop();
+            igdLatch.countDown();
             return;
         }
 
         logger.debug("UP&P IGD found : " + dev.getFriendlyName());
         synchronized (lock) {
             _router = dev;
+            interfaceAddress = dev.getInterfaceAddress();
         }
 
         discoverService();
@@ -153,9 +285,9 @@ public class Cybergarage extends ControlPoint implements DeviceChangeListener,
                 logger.error("The IGD device we got isn't suiting our needs, let's disable the plugin");
                 isDisabled = true;
                 _router = null;
-                return;
             }
         }
+        igdLatch.countDown();
 //        registerPortMappings();
     }
 
@@ -174,59 +306,56 @@ public class Cybergarage extends ControlPoint implements DeviceChangeListener,
      * Traverses the structure of the router device looking for the port mapping service.
      */
     private void discoverService() {
+        Device router = _router;
+        if (router == null) {
+            return;
+        }
+        Service service = findService(router);
         synchronized (lock) {
-            for (Iterator iter = _router.getDeviceList().iterator(); iter.hasNext();) {
-                Device current = (Device) iter.next();
-                if (!current.getDeviceType().equals(WAN_DEVICE)) {
+            if (_router == router) {
+                _service = service;
+            }
+        }
+    }
+
+    private Service findService(Device router) {
+        for (Iterator iter = router.getDeviceList().iterator(); iter.hasNext();) {
+            Device current = (Device) iter.next();
+            if (!current.getDeviceType().equals(WAN_DEVICE)) {
+                continue;
+            }
+
+            DeviceList l = current.getDeviceList();
+            for (int i = 0; i < l.size(); i++) {
+                Device current2 = l.getDevice(i);
+                if (!current2.getDeviceType().equals(WANCON_DEVICE)) {
                     continue;
                 }
 
-                DeviceList l = current.getDeviceList();
-                for (int i = 0; i < current.getDeviceList().size(); i++) {
-                    Device current2 = l.getDevice(i);
-                    if (!current2.getDeviceType().equals(WANCON_DEVICE)) {
-                        continue;
-                    }
-
-                    _service = current2.getService(WAN_PPP_CONNECTION);
-                    if (_service == null) {
-                        logger.debug(_router.getFriendlyName() + " doesn't seems to be using PPP; we won't be able to extract bandwidth-related informations out of it.");
-                        _service = current2.getService(WAN_IP_CONNECTION);
-                        if (_service == null) {
-                            logger.error(_router.getFriendlyName() + " doesn't export WAN_IP_CONNECTION either: we won't be able to use it!");
-                        }
+                Service service = current2.getService(WAN_PPP_CONNECTION);
+                if (service == null) {
+                    logger.debug(router.getFriendlyName() + " doesn't seems to be using PPP; we won't be able to extract bandwidth-related informations out of it.");
+                    service = current2.getService(WAN_IP_CONNECTION);
+                    if (service == null) {
+                        logger.error(router.getFriendlyName() + " doesn't export WAN_IP_CONNECTION either: we won't be able to use it!");
                     }
-
-                    return;
                 }
+
+                return service;
             }
         }
+        return null;
     }
 
-    private boolean tryAddMapping(String protocol, int port, String description, ForwardPort fp) {
-        logger.debug("Registering a port mapping for " + port + "/" + protocol);
-        int nbOfTries = 0;
-        boolean isPortForwarded = false;
-        while (nbOfTries++ < 1) {
-            isPortForwarded = addMapping(protocol, port, "NatTraversal0.0.1 " + description, fp);
-            if (isPortForwarded) {
-                break;
-            }
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-            }
-        }
-        logger.debug((isPortForwarded ? "Mapping is successful!" : "Mapping has failed!") + " (" + nbOfTries + " tries)");
+    private boolean tryAddMapping(String protocol, int port, String description, ForwardPort fp, boolean renew) {
+        logger.debug((renew ? "Renewing" : "Registering") + " a port mapping for " + port + "/" + protocol);
+        boolean isPortForwarded = addMapping(protocol, port, "NatTraversal0.0.1 " + description, fp, renew);
+        logger.debug(isPortForwarded ? "Mapping is successful!" : "Mapping has failed!");
         return isPortForwarded;
     }
 
     public void unregisterPortMappings() {
-        CopyOnWriteArraySet<ForwardPort> ports;
-        synchronized (lock) {
-            ports = portsForwarded;
-        }
-        this.unregisterPorts(ports);
+        this.unregisterPorts(portsForwarded);
     }
 
     public void deviceRemoved(Device dev) {
@@ -253,11 +382,12 @@ public class Cybergarage extends ControlPoint implements DeviceChangeListener,
      * null if we can't find it.
      */
     public String getNATAddress() {
-        if (!isNATPresent()) {
+        Service service = _service;
+        if (!isNATPresent() || service == null) {
             return null;
         }
 
-        Action getIP = _service.getAction("GetExternalIPAddress");
+        Action getIP = service.getAction("GetExternalIPAddress");
         if (getIP == null || !getIP.postControlAction()) {
             return null;
         }
@@ -269,11 +399,12 @@ public class Cybergarage extends ControlPoint implements DeviceChangeListener,
      * @return the reported upstream bit rate in bits per second. -1 if it's not available. Blocking.
      */
     public int getUpstramMaxBitRate() {
-        if (!isNATPresent()) {
+        Service service = _service;
+        if (!isNATPresent() || service == null) {
             return -1;
         }
 
-        Action getIP = _service.getAction("GetLinkLayerMaxBitRates");
+        Action getIP = service.getAction("GetLinkLayerMaxBitRates");
         if (getIP == null || !getIP.postControlAction()) {
             return -1;
         }
@@ -285,11 +416,12 @@ public class Cybergarage extends ControlPoint implements DeviceChangeListener,
      * @return the reported downstream bit rate in bits per second. -1 if it's not available. Blocking.
      */
     public int getDownstreamMaxBitRate() {
-        if (!isNATPresent()) {
+        Service service = _service;
+        if (!isNATPresent() || service == null) {
             return -1;
         }
 
-        Action getIP = _service.getAction("GetLinkLayerMaxBitRates");
+        Action getIP = service.getAction("GetLinkLayerMaxBitRates");
         if (getIP == null || !getIP.postControlAction()) {
             return -1;
         }
@@ -468,60 +600,72 @@ public class Cybergarage extends ControlPoint implements DeviceChangeListener,
 //	public String handleHTTPPut(HTTPRequest request) throws PluginHTTPException {
 //		return null;
 //	}
-    private boolean addMapping(String protocol, int port, String description, ForwardPort fp) {
-        if (isDisabled || !isNATPresent() || _router == null) {
+    /**
+     * @param renew the mapping is ours and still in place - refresh the lease without removing it first
+     */
+    private boolean addMapping(String protocol, int port, String description, ForwardPort fp, boolean renew) {
+        Service service = _service;
+        if (isDisabled || !isNATPresent() || service == null) {
             return false;
         }
 
         // Just in case...
-        removeMapping(protocol, port, fp, true);
+        if (!renew) {
+            removeMapping(protocol, port, fp, true);
+        }
 
-        Action add = _service.getAction("AddPortMapping");
+        Action add = service.getAction("AddPortMapping");
         if (add == null) {
             logger.error("Couldn't find AddPortMapping action!");
             return false;
         }
 
-
-        add.setArgumentValue("NewRemoteHost", "");
-        add.setArgumentValue("NewExternalPort", port);
-        add.setArgumentValue("NewInternalClient", _router.getInterfaceAddress());
-        add.setArgumentValue("NewInternalPort", port);
-        add.setArgumentValue("NewProtocol", protocol);
-        add.setArgumentValue("NewPortMappingDescription", description);
-        add.setArgumentValue("NewEnabled", "1");
-        add.setArgumentValue("NewLeaseDuration", 10*1000);
-//        add.setArgumentValue("NewLeaseDuration", 0);
-
-        if (add.postControlAction()) {
-            synchronized (lock) {
-                portsForwarded.add(fp);
-            }
+        // Arguments set on the action itself live in the shared description nodes - mappings run in parallel, so
+        // every call gets its own argument list
+        ArgumentList args = new ArgumentList();
+        args.add(new Argument("NewRemoteHost", ""));
+        args.add(new Argument("NewExternalPort", Integer.toString(port)));
+        args.add(new Argument("NewProtocol", protocol));
+        args.add(new Argument("NewInternalPort", Integer.toString(port)));
+        args.add(new Argument("NewInternalClient", interfaceAddress));
+        args.add(new Argument("NewEnabled", "1"));
+        args.add(new Argument("NewPortMappingDescription", description));
+        args.add(new Argument("NewLeaseDuration", Integer.toString(leaseDuration)));
+//        args.add(new Argument("NewLeaseDuration", "0"));
+
+        if (postAction(add, args)) {
+            portsForwarded.add(fp);
             return true;
         } else {
             return false;
         }
     }
 
+    private boolean postAction(Action action, ArgumentList args) {
+        ActionRequest req = new ActionRequest();
+        req.setRequest(action, args);
+        return req.post().isSuccessful();
+    }
+
     private boolean removeMapping(String protocol, int port, ForwardPort fp, boolean noLog) {
-        if (isDisabled || !isNATPresent()) {
+        Service service = _service;
+        if (isDisabled || !isNATPresent() || service == null) {
             return false;
         }
 
-        Action remove = _service.getAction("DeletePortMapping");
+        Action remove = service.getAction("DeletePortMapping");
         if (remove == null) {
             logger.error("Couldn't find DeletePortMapping action!");
             return false;
         }
 
-        // remove.setArgumentValue("NewRemoteHost", "");
-        remove.setArgumentValue("NewExternalPort", port);
-        remove.setArgumentValue("NewProtocol", protocol);
+        ArgumentList args = new ArgumentList();
+        args.add(new Argument("NewRemoteHost", ""));
+        args.add(new Argument("NewExternalPort", Integer.toString(port)));
+        args.add(new Argument("NewProtocol", protocol));
 
-        boolean retval = remove.postControlAction();
-        synchronized (lock) {
-            portsForwarded.remove(fp);
-        }
+        boolean retval = postAction(remove, args);
+        portsForwarded.remove(fp);
 
         if (!noLog) {
             if (retval) {
@@ -592,38 +736,88 @@ public class Cybergarage extends ControlPoint implements DeviceChangeListener,
         }
     }
 
+    /**
+     * Maps the ports with up to MAX_PARALLEL_MAPPINGS AddPortMapping calls in flight. Blocking.
+     */
     public Map<ForwardPort,Boolean> registerPorts(CopyOnWriteArraySet<ForwardPort> portsToForwardNow) {
-        logger.info("Register ports: " + portsToForwardNow.size());
+        return mapPorts(portsToForwardNow, false);
+    }
+
+    /**
+     * Refreshes the lease of mappings we made with a new AddPortMapping each, like registerPorts. Blocking.
+     */
+    public Map<ForwardPort,Boolean> renewPorts(CopyOnWriteArraySet<ForwardPort> portsToRenew) {
+        return mapPorts(portsToRenew, true);
+    }
+
+    private Map<ForwardPort,Boolean> mapPorts(CopyOnWriteArraySet<ForwardPort> portsToForwardNow, final boolean renew) {
+        logger.info((renew ? "Renew ports: " : "Register ports: ") + portsToForwardNow.size());
         Map<ForwardPort,Boolean> res = new HashMap<ForwardPort,Boolean>();
-        for (Iterator<ForwardPort> i = portsToForwardNow.iterator(); i.hasNext();) {
-            ForwardPort port = i.next();
-            String protocol;
-            if (port.protocol == ForwardPort.PROTOCOL_UDP_IPV4) {
-                protocol = "UDP";
-            } else if (port.protocol == ForwardPort.PROTOCOL_TCP_IPV4) {
-                protocol = "TCP";
-            } else {
-                HashMap map = new HashMap();
-                map.put(port, new ForwardPortStatus(ForwardPortStatus.DEFINITE_FAILURE, "Protocol not supported", port.portNumber));
-                forwardCallback.portForwardStatus(map);
-                res.put(port, false);
-                continue;
+        if (portsToForwardNow.isEmpty()) {
+            return res;
+        }
+        Map<ForwardPort, Future<Boolean>> pending = new HashMap<ForwardPort, Future<Boolean>>();
+        try {
+            for (Iterator<ForwardPort> i = portsToForwardNow.iterator(); i.hasNext();) {
+                final ForwardPort port = i.next();
+                final String protocol;
+                if (port.protocol == ForwardPort.PROTOCOL_UDP_IPV4) {
+                    protocol = "UDP";
+                } else if (port.protocol == ForwardPort.PROTOCOL_TCP_IPV4) {
+                    protocol = "TCP";
+                } else {
+                    HashMap map = new HashMap();
+                    map.put(port, new ForwardPortStatus(ForwardPortStatus.DEFINITE_FAILURE, "Protocol not supported", port.portNumber));
+                    forwardCallback.portForwardStatus(map);
+                    res.put(port, false);
+                    continue;
+                }
+                pending.put(port, MAPPERS.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return tryAddMapping(protocol, port.portNumber, port.name, port, renew);
+                    }
+                }));
             }
-            if (tryAddMapping(protocol, port.portNumber, port.name, port)) {
-                HashMap map = new HashMap();
-                map.put(port, new ForwardPortStatus(ForwardPortStatus.MAYBE_SUCCESS, "Port apparently forwarded by UPnP", port.portNumber));
-//                forwardCallback.portForwardStatus(map);
-                res.put(port, true);
-            } else {
-                HashMap map = new HashMap();
-                map.put(port, new ForwardPortStatus(ForwardPortStatus.PROBABLE_FAILURE, "UPnP port forwarding apparently failed", port.portNumber));
-//                forwardCallback.portForwardStatus(map);
-                res.put(port, false);
+            for (Map.Entry<ForwardPort, Future<Boolean>> e : pending.entrySet()) {
+                boolean mapped;
+                try {
+                    mapped = e.getValue().get();
+                } catch (ExecutionException ex) {
+                    logger.warn("Mapping " + e.getKey().portNumber + " failed: " + ex.getCause());
+                    mapped = false;
+                }
+                res.put(e.getKey(), mapped);
+            }
+        } catch (InterruptedException ex) {
+            logger.info("Interrupted while registering ports");
+            Thread.currentThread().interrupt();
+            for (Map.Entry<ForwardPort, Future<Boolean>> e : pending.entrySet()) {
+                if (!res.containsKey(e.getKey())) {
+                    e.getValue().cancel(true);
+                    res.put(e.getKey(), false);
+                }
             }
         }
         return res;
     }
 
+    private static ThreadPoolExecutor mappersPool() {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_PARALLEL_MAPPINGS, MAX_PARALLEL_MAPPINGS,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger threadId = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "Cybergarage.Mapper-" + threadId.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
     public void unregisterPorts(CopyOnWriteArraySet<ForwardPort> portsToForwardNow) {
         for (Iterator<ForwardPort> i = portsToForwardNow.iterator(); i.hasNext();) {
             ForwardPort port = i.next();
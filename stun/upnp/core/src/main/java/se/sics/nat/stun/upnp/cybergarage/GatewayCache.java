@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2009 Swedish Institute of Computer Science (SICS) Copyright (C)
+ * 2009 Royal Institute of Technology (KTH)
+ *
+ * NatTraverser is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.sics.nat.stun.upnp.cybergarage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Last gateway found by discovery, kept in a properties file. Besides the
+ * addresses it holds the root description and the SCPD of the WAN connection
+ * service, so the gateway can be rebuilt without multicast or description
+ * downloads. Entries are not trusted - the caller validates them with a
+ * GetExternalIPAddress call before use.
+ *
+ * @author Alex Ormenisan <aaor@kth.se>
+ */
+public class GatewayCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(GatewayCache.class);
+    private static final String LOCATION = "location";
+    private static final String INTERFACE = "interface";
+    private static final String SERVICE_TYPE = "serviceType";
+    private static final String CONTROL_URL = "controlUrl";
+    private static final String EXTERNAL_IP = "externalIp";
+    private static final String DESCRIPTION = "description";
+    private static final String SCPD = "scpd";
+
+    private final File file;
+
+    public GatewayCache(File file) {
+        this.file = file;
+    }
+
+    public Gateway get() {
+        if (!file.exists()) {
+            return null;
+        }
+        Properties entries = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            entries.load(in);
+        } catch (IOException ex) {
+            logger.warn("could not read gateway cache:{}", file);
+            return null;
+        }
+        Gateway gw = new Gateway(entries.getProperty(LOCATION), entries.getProperty(INTERFACE),
+                entries.getProperty(SERVICE_TYPE), entries.getProperty(CONTROL_URL), entries.getProperty(EXTERNAL_IP),
+                entries.getProperty(DESCRIPTION), entries.getProperty(SCPD));
+        if (gw.location == null || gw.interfaceAddress == null || gw.serviceType == null || gw.controlUrl == null
+                || gw.description == null || gw.scpd == null) {
+            logger.warn("bad gateway cache:{}", file);
+            return null;
+        }
+        return gw;
+    }
+
+    public void put(Gateway gw) {
+        Properties entries = new Properties();
+        entries.setProperty(LOCATION, gw.location);
+        entries.setProperty(INTERFACE, gw.interfaceAddress);
+        entries.setProperty(SERVICE_TYPE, gw.serviceType);
+        entries.setProperty(CONTROL_URL, gw.controlUrl);
+        if (gw.externalIp != null) {
+            entries.setProperty(EXTERNAL_IP, gw.externalIp);
+        }
+        entries.setProperty(DESCRIPTION, gw.description);
+        entries.setProperty(SCPD, gw.scpd);
+        try (OutputStream out = new FileOutputStream(file)) {
+            entries.store(out, "upnp gateway cache");
+        } catch (IOException ex) {
+            logger.warn("could not write gateway cache:{}", file);
+        }
+    }
+
+    public void clear() {
+        if (file.exists() && !file.delete()) {
+            logger.warn("could not delete gateway cache:{}", file);
+        }
+    }
+
+    public static class Gateway {
+
+        /** url of the root description */
+        public final String location;
+        /** local address the gateway answered on - the internal client of our mappings */
+        public final String interfaceAddress;
+        public final String serviceType;
+        public final String controlUrl;
+        public final String externalIp;
+        public final String description;
+        public final String scpd;
+
+        public Gateway(String location, String interfaceAddress, String serviceType, String controlUrl,
+                String externalIp, String description, String scpd) {
+            this.location = location;
+            this.interfaceAddress = interfaceAddress;
+            this.serviceType = serviceType;
+            this.controlUrl = controlUrl;
+            this.externalIp = externalIp;
+            this.description = description;
+            this.scpd = scpd;
+        }
+
+        @Override
+        public String toString() {
+            return "Gateway<" + location + ", " + serviceType + ", " + controlUrl + ">";
+        }
+    }
+}